@@ -30,6 +30,8 @@ import java.util.Iterator;
 import java.util.Set;
 import java.util.StringTokenizer;
 
+import java.util.concurrent.ExecutorService;
+
 import javax.servlet.ServletConfig;
 import javax.servlet.ServletException;
 
@@ -54,6 +56,12 @@ public abstract class AbstractHandler implements MethodHandler {
     private static final Set KNOWN_WORKGROUPS =
             Collections.synchronizedSet(new HashSet());
 
+    private static final BufferPool DEFAULT_BUFFER_POOL =
+            new BufferPool(Long.MAX_VALUE, 65536);
+
+    private static final ServerLimits DEFAULT_SERVER_LIMITS =
+            new ServerLimits(8);
+
     private ServletConfig config;
 
     /**
@@ -244,6 +252,63 @@ public abstract class AbstractHandler implements MethodHandler {
                         Davenport.LOCK_MANAGER);
     }
 
+    /**
+     * Returns the <code>ExecutorService</code> on which background SMB
+     * transfers (such as read-ahead) are performed.
+     *
+     * @return The shared transfer executor.  Returns <code>null</code> if
+     * background transfers are disabled.
+     */
+    protected ExecutorService getExecutor() {
+        ServletConfig config = getServletConfig();
+        return (config == null) ? null : (ExecutorService)
+                config.getServletContext().getAttribute(Davenport.EXECUTOR);
+    }
+
+    /**
+     * Returns the <code>BufferPool</code> from which transfer buffers are
+     * obtained.  If the Davenport servlet has not installed a pool, an
+     * unbounded pool private to this class is used.
+     *
+     * @return The transfer buffer pool.
+     */
+    protected BufferPool getBufferPool() {
+        ServletConfig config = getServletConfig();
+        BufferPool pool = (config == null) ? null : (BufferPool)
+                config.getServletContext().getAttribute(Davenport.BUFFER_POOL);
+        return (pool != null) ? pool : DEFAULT_BUFFER_POOL;
+    }
+
+    /**
+     * Returns the <code>ServerLimits</code> bounding the concurrent
+     * operations performed against each server by tree operations (such
+     * as copying a collection).  If the Davenport servlet has not
+     * installed limits, default limits private to this class are used.
+     *
+     * @return The per-server concurrency limits.
+     */
+    protected ServerLimits getServerLimits() {
+        ServletConfig config = getServletConfig();
+        ServerLimits limits = (config == null) ? null : (ServerLimits)
+                config.getServletContext().getAttribute(
+                        Davenport.SERVER_LIMITS);
+        return (limits != null) ? limits : DEFAULT_SERVER_LIMITS;
+    }
+
+    /**
+     * Returns the <code>AsyncTransport</code> used to perform transfers
+     * without holding the request thread.
+     *
+     * @return The asynchronous transport.  Returns <code>null</code> if
+     * asynchronous transfers are disabled.
+     */
+    protected AsyncTransport getAsyncTransport() {
+        ServletConfig config = getServletConfig();
+        return (config == null) ? null : (AsyncTransport)
+                config.getServletContext().getAttribute(
+                        Davenport.ASYNC_TRANSPORT);
+    }
+
     /**
      * Returns the <code>SmbFileFilter</code> used to filter resource
      * requests.  The default implementation uses the global filter
@@ -384,12 +449,12 @@ public abstract class AbstractHandler implements MethodHandler {
      * Checks if a conditional request should apply.  If the client specifies
      * one or more conditional cache headers ("<code>If-Match</code>",
      * "<code>If-None-Match</code>", "<code>If-Modified-Since</code>", or
-     * "<code>If-Unmodified-Since" -- "<code>If-Range</code>" is not
-     * currently supported), this method will indicate whether the
-     * request should be processed.  If locking is supported, this
-     * method will additionally check the "<code>If</code>" header to
-     * determine whether the request should apply based on the status
-     * of the relevant locks. 
+     * "<code>If-Unmodified-Since" -- "<code>If-Range</code>" is evaluated
+     * separately by handlers supporting byte ranges), this method will
+     * indicate whether the request should be processed.  If locking is
+     * supported, this method will additionally check the "<code>If</code>"
+     * header to determine whether the request should apply based on the
+     * status of the relevant locks. 
      *
      * @param request The servlet request whose conditional cache headers
      * will be examined.
@@ -0,0 +1,114 @@
+/* Davenport WebDAV SMB Gateway
+ * Copyright (C) 2004  Eric Glass
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+package smbdav;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
+
+import javax.servlet.ServletConfig;
+import javax.servlet.ServletException;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Moves request and response bodies (or services entire requests) without
+ * holding the container's request thread.  Implementations release the
+ * request thread as soon as a transfer is started, and complete the
+ * request when it finishes.
+ * <p>
+ * This interface depends only on the Servlet 2.3 API, so that handlers may
+ * refer to it regardless of the container in use; the implementation
+ * ({@link smbdav.ServletAsyncTransport}) is only loaded when asynchronous
+ * transfers are enabled.
+ *
+ * @author Eric Glass
+ */
+public interface AsyncTransport {
+
+    /**
+     * Initializes the transport.
+     *
+     * @param config The servlet configuration.
+     * @throws ServletException If an error occurs during initialization.
+     */
+    public void init(ServletConfig config) throws ServletException;
+
+    /**
+     * Releases any resources held by the transport.
+     */
+    public void destroy();
+
+    /**
+     * Indicates whether the specified request can be handled
+     * asynchronously.
+     *
+     * @param request The request being serviced.
+     * @return <code>true</code> if the transport can be used.
+     */
+    public boolean isAvailable(HttpServletRequest request);
+
+    /**
+     * Sends the content of the given stream as the response body.  The
+     * stream is closed and the request completed once the content has
+     * been sent.  The response status and headers must be set before this
+     * method is called.
+     *
+     * @param request The request being serviced.
+     * @param response The servlet response.
+     * @param input The stream providing the response content.
+     */
+    public void send(HttpServletRequest request, HttpServletResponse response,
+            InputStream input);
+
+    /**
+     * Copies the request body to the given stream.  Once the body has been
+     * read and the stream closed, the completion task is run (to set the
+     * response status and headers) and the request is completed.
+     *
+     * @param request The request being serviced.
+     * @param response The servlet response.
+     * @param output The stream receiving the request content.
+     * @param completion The task run after the content has been written
+     * successfully.
+     */
+    public void receive(HttpServletRequest request,
+            HttpServletResponse response, OutputStream output,
+                    Runnable completion);
+
+    /**
+     * Services the request on a thread obtained from the given executor,
+     * releasing the container's request thread.  The request is completed
+     * when the task returns; if the task fails and the response has not
+     * been committed, an error is sent.  Asynchronous transfers are not
+     * available to requests serviced in this manner (their content is
+     * transferred by the executor's thread instead).
+     *
+     * @param request The request being serviced.
+     * @param response The servlet response.
+     * @param executor The executor on which the request is serviced.
+     * @param task The task servicing the request.
+     */
+    public void dispatch(HttpServletRequest request,
+            HttpServletResponse response, Executor executor, Callable task);
+
+}
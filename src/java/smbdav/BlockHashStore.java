@@ -0,0 +1,209 @@
+/* Davenport WebDAV SMB Gateway
+ * Copyright (C) 2004  Eric Glass
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+package smbdav;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import jcifs.smb.SmbFile;
+
+/**
+ * Stores the block hashes of files on local disk, so that an overwrite
+ * can be compared against the existing content without reading it from
+ * the server.  Each file has a single entry (named after a digest of its
+ * URL), recording the ETag and length of the content that was hashed;
+ * an entry is only returned while these still match the file.
+ * <p>
+ * Entries are only a cache, and may be removed at any time.
+ *
+ * @author Eric Glass
+ */
+public class BlockHashStore {
+
+    private static final String ALGORITHM = "SHA-256";
+
+    private static final int MAGIC = 0x44415648;
+
+    private final File directory;
+
+    private long hits;
+
+    private long misses;
+
+    /**
+     * Creates a <code>BlockHashStore</code> in the specified directory.
+     *
+     * @param directory The directory holding the entries.
+     * @throws IOException If the directory could not be created.
+     */
+    public BlockHashStore(File directory) throws IOException {
+        this.directory = directory;
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Unable to create hash store: " +
+                    directory);
+        }
+    }
+
+    /**
+     * Returns a new digest for hashing blocks.
+     *
+     * @return A <code>MessageDigest</code>.
+     */
+    public static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance(ALGORITHM);
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IllegalStateException(ALGORITHM + " unavailable.");
+        }
+    }
+
+    /**
+     * Returns the block hashes recorded for the given file, if they
+     * describe its current content.
+     *
+     * @param file The file.
+     * @param etag The file's current ETag.
+     * @param length The file's current length.
+     * @param blockSize The block size used to hash the content.
+     * @return The hash of each block, or <code>null</code> if none are
+     * recorded for the file's current content.
+     */
+    public byte[][] get(SmbFile file, String etag, long length,
+            int blockSize) {
+        File entry = getEntry(file);
+        if (!entry.isFile()) {
+            miss();
+            return null;
+        }
+        try {
+            DataInputStream input = new DataInputStream(
+                    new BufferedInputStream(new FileInputStream(entry)));
+            try {
+                if (input.readInt() != MAGIC ||
+                        !input.readUTF().equals(file.toString()) ||
+                                !input.readUTF().equals(etag) ||
+                                        input.readLong() != length ||
+                                                input.readInt() != blockSize) {
+                    miss();
+                    return null;
+                }
+                byte[][] hashes = new byte[input.readInt()][];
+                for (int i = 0; i < hashes.length; i++) {
+                    hashes[i] = new byte[input.readUnsignedByte()];
+                    input.readFully(hashes[i]);
+                }
+                synchronized (this) {
+                    hits++;
+                }
+                return hashes;
+            } finally {
+                input.close();
+            }
+        } catch (IOException ex) {
+            Log.log(Log.DEBUG, "Unable to read block hashes \"{0}\": {1}",
+                    new Object[] { entry, ex });
+            entry.delete();
+            miss();
+            return null;
+        }
+    }
+
+    /**
+     * Records the block hashes of the given file's content.
+     *
+     * @param file The file.
+     * @param etag The file's ETag.
+     * @param length The file's length.
+     * @param blockSize The block size used to hash the content.
+     * @param hashes The hash of each block.
+     */
+    public void put(SmbFile file, String etag, long length, int blockSize,
+            byte[][] hashes) {
+        File entry = getEntry(file);
+        File temp = new File(directory, entry.getName() + "." +
+                Thread.currentThread().hashCode() + ".tmp");
+        try {
+            DataOutputStream output = new DataOutputStream(
+                    new BufferedOutputStream(new FileOutputStream(temp)));
+            try {
+                output.writeInt(MAGIC);
+                output.writeUTF(file.toString());
+                output.writeUTF(etag);
+                output.writeLong(length);
+                output.writeInt(blockSize);
+                output.writeInt(hashes.length);
+                for (int i = 0; i < hashes.length; i++) {
+                    output.writeByte(hashes[i].length);
+                    output.write(hashes[i]);
+                }
+            } finally {
+                output.close();
+            }
+            entry.delete();
+            if (!temp.renameTo(entry)) temp.delete();
+        } catch (IOException ex) {
+            Log.log(Log.DEBUG, "Unable to write block hashes \"{0}\": {1}",
+                    new Object[] { entry, ex });
+            temp.delete();
+        }
+    }
+
+    /**
+     * Removes the entry for the given file.
+     *
+     * @param file The file.
+     */
+    public void remove(SmbFile file) {
+        getEntry(file).delete();
+    }
+
+    public synchronized String toString() {
+        return "BlockHashStore[directory=" + directory + ",hits=" + hits +
+                ",misses=" + misses + "]";
+    }
+
+    private synchronized void miss() {
+        misses++;
+    }
+
+    private File getEntry(SmbFile file) {
+        try {
+            byte[] hashBytes = newDigest().digest(
+                    file.toString().getBytes("UTF-8"));
+            StringBuffer name = new StringBuffer();
+            for (int i = 0; i < 16; i++) {
+                name.append(Integer.toHexString((hashBytes[i] >> 4) & 0x0f));
+                name.append(Integer.toHexString(hashBytes[i] & 0x0f));
+            }
+            return new File(directory, name.append(".blocks").toString());
+        } catch (IOException ex) {
+            throw new IllegalStateException(String.valueOf(ex));
+        }
+    }
+
+}
@@ -0,0 +1,341 @@
+/* Davenport WebDAV SMB Gateway
+ * Copyright (C) 2004  Eric Glass
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+package smbdav;
+
+import java.io.InterruptedIOException;
+
+import java.util.IdentityHashMap;
+import java.util.LinkedList;
+import java.util.Map;
+
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Maintains a bounded pool of transfer buffers.  Buffers are handed out in
+ * power-of-two size classes, from 4 kilobytes up to a configured maximum;
+ * a request is satisfied with the smallest class that will hold it, so the
+ * returned buffer may be larger than requested.
+ * <p>
+ * The total size of all buffers allocated by the pool (whether borrowed or
+ * idle) is held within a fixed budget.  When the budget is exhausted, idle
+ * buffers of other sizes are discarded to make room; if none are available
+ * the caller waits until another buffer is returned.  A request is always
+ * granted when no buffers are outstanding, so a single buffer never waits
+ * indefinitely.
+ * <p>
+ * The pool keeps track of the buffers it has handed out; returning a
+ * buffer which was not borrowed from the pool, or returning a buffer more
+ * than once, has no effect.
+ *
+ * @author Eric Glass
+ */
+public class BufferPool {
+
+    private static final int MINIMUM_BUFFER_SIZE = 4096;
+
+    private final LinkedList[] idle;
+
+    private final Map borrowed = new IdentityHashMap();
+
+    // not a monitor, so that waiting does not pin virtual threads.
+    private final ReentrantLock lock = new ReentrantLock();
+
+    private final Condition returned = lock.newCondition();
+
+    private final long budget;
+
+    private final int maximumBufferSize;
+
+    private long allocated;
+
+    private long outstanding;
+
+    private long hits;
+
+    private long misses;
+
+    private long waits;
+
+    /**
+     * Creates a <code>BufferPool</code>.
+     *
+     * @param budget The largest number of bytes the pool will allocate.
+     * @param maximumBufferSize The largest buffer the pool will provide.
+     * This is rounded up to a power of two.
+     */
+    public BufferPool(long budget, int maximumBufferSize) {
+        int size = MINIMUM_BUFFER_SIZE;
+        int classes = 1;
+        while (size < maximumBufferSize) {
+            size <<= 1;
+            classes++;
+        }
+        this.budget = budget;
+        this.maximumBufferSize = size;
+        this.idle = new LinkedList[classes];
+        for (int i = 0; i < classes; i++) idle[i] = new LinkedList();
+    }
+
+    /**
+     * Returns the largest buffer size provided by this pool.
+     *
+     * @return An <code>int</code> containing the maximum buffer size.
+     */
+    public int getMaximumBufferSize() {
+        return maximumBufferSize;
+    }
+
+    /**
+     * Obtains a buffer of at least the specified size, waiting if
+     * necessary until the pool's budget permits.  The buffer should be
+     * returned via {@link #release(byte[])} when no longer needed.
+     *
+     * @param size The minimum size of the buffer.
+     * @return A <code>byte[]</code> of at least the requested size.
+     * @throws InterruptedIOException If the thread is interrupted while
+     * waiting for a buffer.
+     */
+    public byte[] borrow(int size) throws InterruptedIOException {
+        return borrow(size, 1)[0];
+    }
+
+    /**
+     * Obtains several buffers of at least the specified size at once,
+     * waiting if necessary until the pool's budget permits all of them.
+     * No buffer is held while waiting, so callers needing more than one
+     * buffer at a time should use this rather than borrowing each in turn.
+     *
+     * @param size The minimum size of each buffer.
+     * @param count The number of buffers.
+     * @return An array of <code>count</code> buffers, each of at least the
+     * requested size.
+     * @throws InterruptedIOException If the thread is interrupted while
+     * waiting for the buffers.
+     */
+    public byte[][] borrow(int size, int count) throws InterruptedIOException {
+        byte[][] buffers;
+        lock.lock();
+        try {
+            buffers = take(size, count);
+            if (buffers != null) return buffers;
+            waits++;
+        } finally {
+            lock.unlock();
+        }
+        Log.log(Log.DEBUG, "Waiting for {0} transfer buffer(s) of {1} bytes.",
+                new Object[] { new Integer(count), new Integer(size) });
+        lock.lock();
+        try {
+            while ((buffers = take(size, count)) == null) returned.await();
+            return buffers;
+        } catch (InterruptedException ex) {
+            throw new InterruptedIOException();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Obtains a buffer of at least the specified size if one is available
+     * without waiting.
+     *
+     * @param size The minimum size of the buffer.
+     * @return A <code>byte[]</code> of at least the requested size, or
+     * <code>null</code> if the pool's budget is exhausted.
+     */
+    public byte[] tryBorrow(int size) {
+        lock.lock();
+        try {
+            byte[][] buffers = take(size, 1);
+            return (buffers != null) ? buffers[0] : null;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns a buffer to the pool.  Buffers which are not currently
+     * borrowed from this pool are ignored.
+     *
+     * @param buffer The buffer being returned.
+     */
+    public void release(byte[] buffer) {
+        if (buffer == null) return;
+        lock.lock();
+        try {
+            if (borrowed.remove(buffer) == null) return;
+            outstanding -= buffer.length;
+            idle[getSizeClass(buffer.length)].addLast(buffer);
+            returned.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns the number of requests satisfied with an idle buffer.
+     *
+     * @return A <code>long</code> containing the number of pool hits.
+     */
+    public long getHits() {
+        lock.lock();
+        try {
+            return hits;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns the number of requests which required a new buffer to
+     * be allocated.
+     *
+     * @return A <code>long</code> containing the number of pool misses.
+     */
+    public long getMisses() {
+        lock.lock();
+        try {
+            return misses;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns the number of requests which had to wait for the pool's
+     * budget to permit a buffer.
+     *
+     * @return A <code>long</code> containing the number of waits.
+     */
+    public long getWaits() {
+        lock.lock();
+        try {
+            return waits;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns the total size of all buffers currently allocated by the
+     * pool, whether borrowed or idle.
+     *
+     * @return A <code>long</code> containing the allocated byte count.
+     */
+    public long getAllocated() {
+        lock.lock();
+        try {
+            return allocated;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Discards all idle buffers.
+     */
+    public void clear() {
+        lock.lock();
+        try {
+            for (int i = 0; i < idle.length; i++) {
+                while (!idle[i].isEmpty()) {
+                    allocated -= ((byte[]) idle[i].removeFirst()).length;
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public String toString() {
+        lock.lock();
+        try {
+            return "BufferPool[budget=" + budget + ",allocated=" +
+                    allocated + ",outstanding=" + outstanding + ",hits=" +
+                            hits + ",misses=" + misses + ",waits=" + waits +
+                                    "]";
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Takes all of the requested buffers, or none of them.  As with a
+     * single buffer, the request is granted if no buffers are outstanding.
+     */
+    private byte[][] take(int size, int count) {
+        boolean force = (outstanding == 0);
+        byte[][] buffers = new byte[count][];
+        for (int i = 0; i < count; i++) {
+            buffers[i] = take(size, force);
+            if (buffers[i] != null) continue;
+            while (--i >= 0) {
+                borrowed.remove(buffers[i]);
+                outstanding -= buffers[i].length;
+                idle[getSizeClass(buffers[i].length)].addFirst(buffers[i]);
+            }
+            return null;
+        }
+        return buffers;
+    }
+
+    private byte[] take(int size, boolean force) {
+        int index = getSizeClass(size);
+        if (index == -1) {
+            throw new IllegalArgumentException(SmbDAVUtilities.getResource(
+                    BufferPool.class, "bufferTooLarge",
+                            new Object[] { new Integer(size),
+                                    new Integer(maximumBufferSize) }, null));
+        }
+        if (!idle[index].isEmpty()) {
+            hits++;
+            byte[] buffer = (byte[]) idle[index].removeFirst();
+            outstanding += buffer.length;
+            borrowed.put(buffer, buffer);
+            return buffer;
+        }
+        int length = MINIMUM_BUFFER_SIZE << index;
+        for (int i = idle.length - 1; i >= 0 &&
+                allocated + length > budget; i--) {
+            while (!idle[i].isEmpty() && allocated + length > budget) {
+                allocated -= ((byte[]) idle[i].removeFirst()).length;
+            }
+        }
+        if (allocated + length > budget && outstanding > 0 && !force) {
+            return null;
+        }
+        misses++;
+        allocated += length;
+        outstanding += length;
+        byte[] buffer = new byte[length];
+        borrowed.put(buffer, buffer);
+        return buffer;
+    }
+
+    private int getSizeClass(int size) {
+        int length = MINIMUM_BUFFER_SIZE;
+        for (int i = 0; i < idle.length; i++) {
+            if (size <= length) return i;
+            length <<= 1;
+        }
+        return -1;
+    }
+
+}
@@ -0,0 +1,190 @@
+/* Davenport WebDAV SMB Gateway
+ * Copyright (C) 2004  Eric Glass
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+package smbdav;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.StringTokenizer;
+
+/**
+ * Represents a range of bytes within a resource, as requested via the
+ * HTTP "<code>Range</code>" header.  Both endpoints are inclusive.
+ *
+ * @author Eric Glass
+ */
+public class ByteRange {
+
+    private static final Comparator START_ORDER = new Comparator() {
+        public int compare(Object first, Object second) {
+            long difference = ((ByteRange) first).getStart() -
+                    ((ByteRange) second).getStart();
+            return (difference < 0) ? -1 : (difference > 0) ? 1 : 0;
+        }
+    };
+
+    private final long start;
+
+    private final long end;
+
+    /**
+     * Creates a <code>ByteRange</code> covering the specified (inclusive)
+     * positions.
+     *
+     * @param start The offset of the first byte in the range.
+     * @param end The offset of the last byte in the range.
+     */
+    public ByteRange(long start, long end) {
+        this.start = start;
+        this.end = end;
+    }
+
+    /**
+     * Returns the offset of the first byte in the range.
+     *
+     * @return A <code>long</code> containing the starting offset.
+     */
+    public long getStart() {
+        return start;
+    }
+
+    /**
+     * Returns the offset of the last byte in the range.
+     *
+     * @return A <code>long</code> containing the ending offset.
+     */
+    public long getEnd() {
+        return end;
+    }
+
+    /**
+     * Returns the number of bytes covered by the range.
+     *
+     * @return A <code>long</code> containing the length of the range.
+     */
+    public long getLength() {
+        return end - start + 1;
+    }
+
+    /**
+     * Formats this range as the value of a "<code>Content-Range</code>"
+     * header.
+     *
+     * @param length The total length of the resource.
+     * @return A <code>String</code> of the form
+     * "<code>bytes <i>start</i>-<i>end</i>/<i>length</i></code>".
+     */
+    public String toContentRange(long length) {
+        return "bytes " + start + "-" + end + "/" + length;
+    }
+
+    public String toString() {
+        return start + "-" + end;
+    }
+
+    /**
+     * Parses the value of an HTTP "<code>Range</code>" header against
+     * a resource of the given length.  Ranges are returned in the order
+     * requested, with the endpoints adjusted to lie within the resource.
+     *
+     * @param header The value of the "<code>Range</code>" header.
+     * @param length The total length of the resource.
+     * @return An array of <code>ByteRange</code> objects.  Returns
+     * <code>null</code> if the header is absent or malformed (in which
+     * case it should be ignored, and the entire resource returned); returns
+     * an empty array if none of the requested ranges can be satisfied.
+     */
+    public static ByteRange[] parse(String header, long length) {
+        if (header == null) return null;
+        header = header.trim();
+        if (!header.regionMatches(true, 0, "bytes=", 0, 6)) {
+            Log.log(Log.DEBUG, "Unrecognized range unit: {0}", header);
+            return null;
+        }
+        List ranges = new ArrayList();
+        StringTokenizer tokenizer = new StringTokenizer(header.substring(6),
+                ",");
+        if (!tokenizer.hasMoreTokens()) return null;
+        try {
+            while (tokenizer.hasMoreTokens()) {
+                String spec = tokenizer.nextToken().trim();
+                int index = spec.indexOf('-');
+                if (index == -1) return null;
+                String first = spec.substring(0, index).trim();
+                String last = spec.substring(index + 1).trim();
+                long start;
+                long end;
+                if (first.equals("")) {
+                    if (last.equals("")) return null;
+                    long suffix = Long.parseLong(last);
+                    if (suffix < 0) return null;
+                    if (suffix == 0) continue;
+                    start = Math.max(length - suffix, 0l);
+                    end = length - 1;
+                } else {
+                    start = Long.parseLong(first);
+                    end = last.equals("") ? length - 1 : Long.parseLong(last);
+                    if (start < 0 || end < start) return null;
+                    if (end >= length) end = length - 1;
+                }
+                if (start >= length) continue;
+                ranges.add(new ByteRange(start, end));
+            }
+        } catch (NumberFormatException ex) {
+            Log.log(Log.DEBUG, "Malformed range header: {0}", header);
+            return null;
+        }
+        return (ByteRange[]) ranges.toArray(new ByteRange[0]);
+    }
+
+    /**
+     * Sorts the given ranges by starting offset and merges those which
+     * overlap, are adjacent, or are separated by no more than the
+     * specified gap.  This allows a set of ranges to be satisfied in a
+     * single forward pass over the resource.
+     *
+     * @param ranges The ranges to coalesce.
+     * @param gap The largest number of unrequested bytes allowed between
+     * two ranges that are to be merged.
+     * @return An array of <code>ByteRange</code> objects in ascending order,
+     * none of which overlap.
+     */
+    public static ByteRange[] coalesce(ByteRange[] ranges, long gap) {
+        if (ranges == null || ranges.length < 2) return ranges;
+        ByteRange[] sorted = (ByteRange[]) ranges.clone();
+        Arrays.sort(sorted, START_ORDER);
+        List result = new ArrayList();
+        ByteRange current = sorted[0];
+        for (int i = 1; i < sorted.length; i++) {
+            ByteRange next = sorted[i];
+            if (next.getStart() <= current.getEnd() + 1 + gap) {
+                if (next.getEnd() > current.getEnd()) {
+                    current = new ByteRange(current.getStart(), next.getEnd());
+                }
+            } else {
+                result.add(current);
+                current = next;
+            }
+        }
+        result.add(current);
+        return (ByteRange[]) result.toArray(new ByteRange[0]);
+    }
+
+}
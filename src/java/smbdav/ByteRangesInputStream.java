@@ -0,0 +1,225 @@
+/* Davenport WebDAV SMB Gateway
+ * Copyright (C) 2004  Eric Glass
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+package smbdav;
+
+import java.io.BufferedInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Reads the parts of a "<code>multipart/byteranges</code>" entity from a
+ * stream.  Each part must carry a "<code>Content-Range</code>" header;
+ * its content is exactly the length given by that range, so the content
+ * is never scanned for the boundary.  A part with a range of
+ * "<code>bytes *&#47;</code><i>length</i>" carries no content.  After
+ * {@link #getNextRange()} returns a range, the stream's read methods
+ * return the content of that part.
+ *
+ * @author Eric Glass
+ */
+public class ByteRangesInputStream extends InputStream {
+
+    private static final int MAXIMUM_LINE = 8192;
+
+    private final InputStream in;
+
+    private final String delimiter;
+
+    private long remaining;
+
+    private boolean started;
+
+    private boolean finished;
+
+    private boolean malformed;
+
+    /**
+     * Creates a <code>ByteRangesInputStream</code> reading the given
+     * stream.
+     *
+     * @param in The stream containing the entity.
+     * @param boundary The boundary separating the parts, as given in the
+     * entity's content type.
+     */
+    public ByteRangesInputStream(InputStream in, String boundary) {
+        this.in = new BufferedInputStream(in);
+        this.delimiter = "--" + boundary;
+    }
+
+    /**
+     * Returns the boundary given in the specified content type, if it is
+     * "<code>multipart/byteranges</code>".
+     *
+     * @param contentType The content type of the entity.
+     * @return A <code>String</code> containing the boundary, or
+     * <code>null</code> if the content type is not
+     * "<code>multipart/byteranges</code>" or gives no boundary.
+     */
+    public static String getBoundary(String contentType) {
+        if (contentType == null) return null;
+        int semicolon = contentType.indexOf(';');
+        if (semicolon == -1 || !contentType.substring(0,
+                semicolon).trim().equalsIgnoreCase("multipart/byteranges")) {
+            return null;
+        }
+        String[] parameters = contentType.substring(semicolon + 1).split(";");
+        for (int i = 0; i < parameters.length; i++) {
+            String parameter = parameters[i].trim();
+            int equals = parameter.indexOf('=');
+            if (equals == -1 || !parameter.substring(0,
+                    equals).trim().equalsIgnoreCase("boundary")) {
+                continue;
+            }
+            String boundary = parameter.substring(equals + 1).trim();
+            if (boundary.length() > 1 && boundary.startsWith("\"") &&
+                    boundary.endsWith("\"")) {
+                boundary = boundary.substring(1, boundary.length() - 1);
+            }
+            return (boundary.length() > 0) ? boundary : null;
+        }
+        return null;
+    }
+
+    /**
+     * Advances to the next part, skipping any unread content of the
+     * current part.
+     *
+     * @return A <code>long[]</code> containing the first and last byte
+     * positions of the part and the complete length (-1 where not given),
+     * or <code>null</code> if there are no more parts.
+     * @throws IOException If an IO error occurs, or the entity is
+     * malformed (see {@link #isMalformed()}).
+     */
+    public long[] getNextRange() throws IOException {
+        if (finished) return null;
+        String line;
+        if (!started) {
+            started = true;
+            // skip the preamble.
+            while (!isDelimiter(line = readLine())) {
+                if (line == null) throw new EOFException();
+            }
+        } else {
+            while (remaining > 0) {
+                long skipped = in.skip(remaining);
+                if (skipped <= 0) {
+                    if (in.read() == -1) throw new EOFException();
+                    skipped = 1;
+                }
+                remaining -= skipped;
+            }
+            line = readLine();
+            if (line == null || line.length() > 0) {
+                throw malformed("Part length does not match range.");
+            }
+            line = readLine();
+            if (!isDelimiter(line)) {
+                throw malformed("Missing boundary after part.");
+            }
+        }
+        if (line.trim().equals(delimiter + "--")) {
+            finished = true;
+            return null;
+        }
+        long[] range = null;
+        while ((line = readLine()) != null && line.length() > 0) {
+            int colon = line.indexOf(':');
+            if (colon == -1) throw malformed("Invalid part header.");
+            if (line.substring(0, colon).trim().equalsIgnoreCase(
+                    "Content-Range")) {
+                range = SmbDAVUtilities.parseContentRange(
+                        line.substring(colon + 1));
+                if (range == null) {
+                    throw malformed("Invalid Content-Range: " + line);
+                }
+            }
+        }
+        if (line == null) throw new EOFException();
+        if (range == null) throw malformed("Part has no Content-Range.");
+        remaining = (range[0] != -1) ? range[1] - range[0] + 1 : 0;
+        return range;
+    }
+
+    public int read() throws IOException {
+        byte[] b = new byte[1];
+        return (read(b, 0, 1) == -1) ? -1 : (b[0] & 0xff);
+    }
+
+    public int read(byte[] b, int offset, int length) throws IOException {
+        if (remaining <= 0) return -1;
+        int count = in.read(b, offset, (int) Math.min(length, remaining));
+        if (count == -1) throw new EOFException();
+        remaining -= count;
+        return count;
+    }
+
+    /**
+     * Indicates whether the entity was found to be malformed.  Other
+     * failures, such as the stream ending early, are errors reading the
+     * underlying stream.
+     *
+     * @return <code>true</code> if an <code>IOException</code> was thrown
+     * because the entity is malformed.
+     */
+    public boolean isMalformed() {
+        return malformed;
+    }
+
+    public int available() throws IOException {
+        return (int) Math.min(in.available(), remaining);
+    }
+
+    public void close() throws IOException {
+        in.close();
+    }
+
+    private IOException malformed(String message) {
+        malformed = true;
+        return new IOException(message);
+    }
+
+    private boolean isDelimiter(String line) {
+        if (line == null) return false;
+        line = line.trim();
+        return line.equals(delimiter) || line.equals(delimiter + "--");
+    }
+
+    /**
+     * Reads a line terminated by LF (with any preceding CR removed).
+     * Returns <code>null</code> at the end of the stream.
+     */
+    private String readLine() throws IOException {
+        StringBuffer line = new StringBuffer();
+        int b;
+        while ((b = in.read()) != '\n') {
+            if (b == -1) return (line.length() > 0) ? line.toString() : null;
+            if (line.length() >= MAXIMUM_LINE) {
+                throw malformed("Line too long.");
+            }
+            line.append((char) b);
+        }
+        int length = line.length();
+        if (length > 0 && line.charAt(length - 1) == '\r') {
+            line.setLength(length - 1);
+        }
+        return line.toString();
+    }
+
+}
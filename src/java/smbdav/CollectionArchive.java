@@ -0,0 +1,268 @@
+/* Davenport WebDAV SMB Gateway
+ * Copyright (C) 2004  Eric Glass
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+package smbdav;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import java.util.Iterator;
+import java.util.LinkedList;
+
+import java.util.concurrent.Executor;
+
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import jcifs.smb.SmbException;
+import jcifs.smb.SmbFile;
+import jcifs.smb.SmbFileFilter;
+import jcifs.smb.SmbFileInputStream;
+
+/**
+ * Streams the contents of a collection, and all of its descendants, as a
+ * ZIP archive.  The tree is walked depth-first as the archive is written,
+ * so neither the listing nor the archive is held in memory or on disk.
+ * ZIP64 extensions are used automatically where the archive requires them
+ * (entries or archives of 4 gigabytes or more, or more than 65535
+ * entries).
+ * <p>
+ * If an executor is supplied, the files following the one being written
+ * are opened and their first reads issued ahead of time, so that per-file
+ * latency against the server is overlapped with the transfer of earlier
+ * files.  Each file is itself read through a
+ * <code>ReadAheadInputStream</code>.
+ * <p>
+ * Files which cannot be read (typically due to access restrictions) are
+ * omitted from the archive.
+ *
+ * @author Eric Glass
+ */
+public class CollectionArchive {
+
+    private final SmbFileFilter filter;
+
+    private final Executor executor;
+
+    private final BufferPool bufferPool;
+
+    private final int chunkSize;
+
+    private final int readAheadDepth;
+
+    private final int prefetch;
+
+    /**
+     * Creates a <code>CollectionArchive</code>.
+     *
+     * @param filter The filter applied to the children of each collection,
+     * or <code>null</code> if all children are included.
+     * @param executor The executor on which files are read, or
+     * <code>null</code> if files are read on the calling thread.
+     * @param bufferPool The pool from which read buffers are obtained.
+     * @param chunkSize The size of each read.
+     * @param readAheadDepth The maximum number of reads outstanding for
+     * a single file.
+     * @param prefetch The number of files opened ahead of the file being
+     * written.
+     */
+    public CollectionArchive(SmbFileFilter filter, Executor executor,
+            BufferPool bufferPool, int chunkSize, int readAheadDepth,
+                    int prefetch) {
+        this.filter = filter;
+        this.executor = executor;
+        this.bufferPool = bufferPool;
+        this.chunkSize = chunkSize;
+        this.readAheadDepth = readAheadDepth;
+        this.prefetch = (executor != null) ? Math.max(prefetch, 0) : 0;
+    }
+
+    /**
+     * Writes the archive of the specified collection.  The given stream is
+     * not closed.
+     *
+     * @param collection The collection being archived.
+     * @param output The stream to which the archive is written.
+     * @throws IOException If an IO error occurs.
+     */
+    public void write(SmbFile collection, OutputStream output)
+            throws IOException {
+        ZipOutputStream zip = new ZipOutputStream(output);
+        LinkedList directories = new LinkedList();
+        LinkedList window = new LinkedList();
+        directories.add(new Entry("", collection));
+        int count = 0;
+        try {
+            while (true) {
+                // keep the window of upcoming files full.
+                while (window.size() <= prefetch && !directories.isEmpty()) {
+                    Entry directory = (Entry) directories.removeFirst();
+                    if (directory.name.length() > 0) window.addLast(directory);
+                    SmbFile[] children = list(directory.file);
+                    // depth-first: descend into subdirectories before
+                    // continuing with the parent's siblings.
+                    LinkedList subdirectories = new LinkedList();
+                    for (int i = 0; i < children.length; i++) {
+                        Entry entry = new Entry(directory.name +
+                                children[i].getName(), children[i]);
+                        if (entry.name.endsWith("/")) {
+                            subdirectories.add(entry);
+                        } else {
+                            window.addLast(entry);
+                        }
+                    }
+                    directories.addAll(0, subdirectories);
+                    open(window);
+                }
+                if (window.isEmpty()) break;
+                if (write((Entry) window.removeFirst(), zip)) count++;
+                open(window);
+            }
+            zip.finish();
+            zip.flush();
+            Log.log(Log.DEBUG, "Archived {0} entries from \"{1}\".",
+                    new Object[] { new Integer(count), collection });
+        } finally {
+            Iterator iterator = window.iterator();
+            while (iterator.hasNext()) {
+                ((Entry) iterator.next()).close();
+            }
+        }
+    }
+
+    private SmbFile[] list(SmbFile directory) {
+        try {
+            SmbFile[] children = (filter != null) ?
+                    directory.listFiles(filter) : directory.listFiles();
+            return (children != null) ? children : new SmbFile[0];
+        } catch (SmbException ex) {
+            Log.log(Log.INFORMATION, "Unable to list \"{0}\": {1}",
+                    new Object[] { directory, ex });
+            return new SmbFile[0];
+        }
+    }
+
+    /**
+     * Opens the files in the prefetch window, starting their first reads.
+     */
+    private void open(LinkedList window) throws IOException {
+        int opened = 0;
+        Iterator iterator = window.iterator();
+        while (opened < prefetch && iterator.hasNext()) {
+            Entry entry = (Entry) iterator.next();
+            if (entry.name.endsWith("/")) continue;
+            entry.open(true);
+            opened++;
+        }
+    }
+
+    private boolean write(Entry entry, ZipOutputStream zip)
+            throws IOException {
+        ZipEntry zipEntry = new ZipEntry(entry.name);
+        try {
+            long modified = entry.file.lastModified();
+            if (modified != 0) zipEntry.setTime(modified);
+            if (entry.name.endsWith("/")) {
+                zip.putNextEntry(zipEntry);
+                zip.closeEntry();
+                return true;
+            }
+            // wait for the first read, so that unreadable files are
+            // skipped before anything is written.
+            int first;
+            try {
+                entry.open(false);
+                first = entry.input.read();
+            } catch (SmbException ex) {
+                Log.log(Log.INFORMATION, "Omitting \"{0}\" from archive: {1}",
+                        new Object[] { entry.file, ex });
+                return false;
+            }
+            zip.putNextEntry(zipEntry);
+            if (first != -1) {
+                zip.write(first);
+                if (entry.input instanceof ReadAheadInputStream) {
+                    ((ReadAheadInputStream) entry.input).writeTo(zip);
+                } else {
+                    byte[] buf = bufferPool.borrow(chunkSize);
+                    try {
+                        int count;
+                        while ((count = entry.input.read(buf, 0,
+                                chunkSize)) != -1) {
+                            zip.write(buf, 0, count);
+                        }
+                    } finally {
+                        bufferPool.release(buf);
+                    }
+                }
+            }
+            zip.closeEntry();
+            return true;
+        } finally {
+            entry.close();
+        }
+    }
+
+    private class Entry {
+
+        private final String name;
+
+        private final SmbFile file;
+
+        private InputStream input;
+
+        public Entry(String name, SmbFile file) {
+            this.name = name;
+            this.file = file;
+        }
+
+        public void open(boolean prefetch) throws IOException {
+            if (input != null) return;
+            if (executor == null || readAheadDepth <= 0) {
+                if (!prefetch) input = new SmbFileInputStream(file);
+                return;
+            }
+            long length;
+            try {
+                length = file.length();
+            } catch (SmbException ex) {
+                // reported when the file is written.
+                if (prefetch) return;
+                throw ex;
+            }
+            ReadAheadInputStream input = new ReadAheadInputStream(file, 0,
+                    length, chunkSize, readAheadDepth, executor, bufferPool);
+            if (prefetch) input.prefetch();
+            this.input = input;
+        }
+
+        public void close() {
+            if (input == null) return;
+            try {
+                input.close();
+            } catch (IOException ex) {
+                Log.log(Log.DEBUG, "Unable to close \"{0}\": {1}",
+                        new Object[] { file, ex });
+            }
+            input = null;
+        }
+
+    }
+
+}
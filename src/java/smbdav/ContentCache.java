@@ -0,0 +1,319 @@
+/* Davenport WebDAV SMB Gateway
+ * Copyright (C) 2004  Eric Glass
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+package smbdav;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Caches the content of SMB files on local disk.  Entries are keyed by the
+ * canonical path of the resource and validated against its entity tag, so
+ * a modified file is never served from a stale copy.  The total size of
+ * the cache is bounded; least recently used entries are evicted to make
+ * room for new ones.
+ * <p>
+ * The cache holds no information about who may read an entry; callers
+ * must verify that the requesting user can open the resource before
+ * serving cached content.
+ *
+ * @author Eric Glass
+ */
+public class ContentCache {
+
+    private static final String PREFIX = "davenport-";
+
+    private final Map entries = new LinkedHashMap(16, 0.75f, true);
+
+    private final Set populating = new HashSet();
+
+    private final File directory;
+
+    private final long maximumSize;
+
+    private final long maximumEntrySize;
+
+    private long size;
+
+    private long hits;
+
+    private long misses;
+
+    /**
+     * Creates a <code>ContentCache</code> in the specified directory.
+     * Any entries left in the directory by a previous instance are removed.
+     *
+     * @param directory The directory in which cached content is stored.
+     * @param maximumSize The largest number of bytes the cache will hold.
+     * @param maximumEntrySize The size of the largest file that will be
+     * cached.
+     * @throws IOException If the directory cannot be created.
+     */
+    public ContentCache(File directory, long maximumSize,
+            long maximumEntrySize) throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException(SmbDAVUtilities.getResource(
+                    ContentCache.class, "cantCreateDirectory",
+                            new Object[] { directory }, null));
+        }
+        this.directory = directory;
+        this.maximumSize = maximumSize;
+        this.maximumEntrySize = Math.min(maximumEntrySize, maximumSize);
+        File[] files = directory.listFiles();
+        for (int i = 0; files != null && i < files.length; i++) {
+            if (files[i].getName().startsWith(PREFIX)) files[i].delete();
+        }
+    }
+
+    /**
+     * Returns the cached copy of the specified resource, if one exists for
+     * the given entity tag.  The returned entry is pinned in the cache and
+     * must be released via {@link #release(ContentCache.Entry)} once the
+     * content has been read.
+     *
+     * @param path The canonical path of the resource.
+     * @param etag The current entity tag of the resource.
+     * @return The cached <code>Entry</code>, or <code>null</code> if the
+     * resource is not cached.
+     */
+    public synchronized Entry get(String path, String etag) {
+        Entry entry = (Entry) entries.get(path);
+        if (entry == null || !entry.etag.equals(etag)) {
+            misses++;
+            return null;
+        }
+        hits++;
+        entry.readers++;
+        return entry;
+    }
+
+    /**
+     * Releases an entry obtained from {@link #get(String, String)}.
+     *
+     * @param entry The entry being released.
+     */
+    public synchronized void release(Entry entry) {
+        if (--entry.readers == 0 && entry.evicted) entry.file.delete();
+    }
+
+    /**
+     * Returns a stream which passes content through to the given target
+     * while storing it in the cache.  The entry is added to the cache when
+     * the returned stream is closed, provided exactly the expected number
+     * of bytes were written; closing the returned stream does not close
+     * the target.
+     *
+     * @param path The canonical path of the resource.
+     * @param etag The current entity tag of the resource.
+     * @param length The length of the resource.
+     * @param target The stream to which content is passed.
+     * @return An <code>OutputStream</code>, or <code>null</code> if the
+     * resource cannot be cached (because it is too large, or is already
+     * being cached by another request).
+     */
+    public OutputStream populate(String path, String etag, long length,
+            OutputStream target) {
+        if (length > maximumEntrySize) return null;
+        synchronized (this) {
+            if (populating.contains(path)) return null;
+            if (!makeRoom(length)) return null;
+            populating.add(path);
+            size += length;
+        }
+        try {
+            File file = File.createTempFile(PREFIX, ".tmp", directory);
+            return new PopulatingStream(path, etag, length, file, target);
+        } catch (IOException ex) {
+            Log.log(Log.WARNING, "Unable to create cache file: {0}", ex);
+            abort(path, length, null);
+            return null;
+        }
+    }
+
+    /**
+     * Removes all entries from the cache.
+     */
+    public synchronized void clear() {
+        Iterator iterator = entries.values().iterator();
+        while (iterator.hasNext()) {
+            evict((Entry) iterator.next());
+            iterator.remove();
+        }
+    }
+
+    public synchronized String toString() {
+        return "ContentCache[directory=" + directory + ",size=" + size +
+                ",entries=" + entries.size() + ",hits=" + hits +
+                        ",misses=" + misses + "]";
+    }
+
+    private boolean makeRoom(long length) {
+        Iterator iterator = entries.values().iterator();
+        while (size + length > maximumSize && iterator.hasNext()) {
+            evict((Entry) iterator.next());
+            iterator.remove();
+        }
+        return size + length <= maximumSize;
+    }
+
+    private void evict(Entry entry) {
+        size -= entry.length;
+        entry.evicted = true;
+        if (entry.readers == 0) entry.file.delete();
+    }
+
+    private synchronized void commit(String path, String etag, long length,
+            File file) {
+        populating.remove(path);
+        Entry previous = (Entry) entries.remove(path);
+        if (previous != null) evict(previous);
+        entries.put(path, new Entry(etag, length, file));
+        Log.log(Log.DEBUG, "Cached \"{0}\" in {1}.",
+                new Object[] { path, file });
+    }
+
+    private synchronized void abort(String path, long length, File file) {
+        populating.remove(path);
+        size -= length;
+        if (file != null) file.delete();
+    }
+
+    /**
+     * A cached copy of a resource.
+     */
+    public static class Entry {
+
+        private final String etag;
+
+        private final long length;
+
+        private final File file;
+
+        private int readers;
+
+        private boolean evicted;
+
+        private Entry(String etag, long length, File file) {
+            this.etag = etag;
+            this.length = length;
+            this.file = file;
+        }
+
+        /**
+         * Returns the local file containing the cached content.
+         *
+         * @return A <code>File</code> containing the resource content.
+         */
+        public File getFile() {
+            return file;
+        }
+
+        /**
+         * Returns the length of the cached content.
+         *
+         * @return A <code>long</code> containing the content length.
+         */
+        public long getLength() {
+            return length;
+        }
+
+    }
+
+    private class PopulatingStream extends OutputStream {
+
+        private final String path;
+
+        private final String etag;
+
+        private final long length;
+
+        private final File file;
+
+        private final OutputStream target;
+
+        private OutputStream cache;
+
+        private long written;
+
+        private boolean closed;
+
+        public PopulatingStream(String path, String etag, long length,
+                File file, OutputStream target) throws IOException {
+            this.path = path;
+            this.etag = etag;
+            this.length = length;
+            this.file = file;
+            this.target = target;
+            this.cache = new FileOutputStream(file);
+        }
+
+        public void write(int b) throws IOException {
+            write(new byte[] { (byte) b }, 0, 1);
+        }
+
+        public void write(byte[] b, int offset, int length)
+                throws IOException {
+            target.write(b, offset, length);
+            if (cache == null) return;
+            try {
+                cache.write(b, offset, length);
+                written += length;
+            } catch (IOException ex) {
+                Log.log(Log.WARNING, "Unable to write cache file: {0}", ex);
+                closeCache();
+                written = -1;
+            }
+        }
+
+        public void flush() throws IOException {
+            target.flush();
+        }
+
+        public void close() {
+            if (closed) return;
+            closed = true;
+            closeCache();
+            if (written == length && file.length() == length) {
+                commit(path, etag, length, file);
+            } else {
+                abort(path, length, file);
+            }
+        }
+
+        private void closeCache() {
+            if (cache == null) return;
+            try {
+                cache.close();
+            } catch (IOException ex) {
+                Log.log(Log.WARNING, "Unable to close cache file: {0}", ex);
+                written = -1;
+            }
+            cache = null;
+        }
+
+    }
+
+}
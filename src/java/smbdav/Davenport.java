@@ -35,6 +35,13 @@ import java.util.Map;
 import java.util.Properties;
 import java.util.StringTokenizer;
 
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
 import javax.servlet.ServletConfig;
 import javax.servlet.ServletContext;
 import javax.servlet.ServletException;
@@ -173,6 +180,33 @@ public class Davenport extends HttpServlet {
      */
     public static final String REQUEST_URI_CHARSET = "request-uri.charset";
 
+    /**
+     * The name of the servlet context attribute containing the
+     * <code>ExecutorService</code> on which handlers perform background
+     * SMB transfers.
+     */
+    public static final String EXECUTOR = "davenport.executor";
+
+    /**
+     * The name of the servlet context attribute containing the
+     * <code>BufferPool</code> from which transfer buffers are obtained.
+     */
+    public static final String BUFFER_POOL = "davenport.bufferPool";
+
+    /**
+     * The name of the servlet context attribute containing the
+     * <code>AsyncTransport</code> used for non-blocking transfers, if
+     * enabled.
+     */
+    public static final String ASYNC_TRANSPORT = "davenport.asyncTransport";
+
+    /**
+     * The name of the servlet context attribute containing the
+     * <code>ServerLimits</code> bounding the concurrent operations
+     * performed against each server by tree operations.
+     */
+    public static final String SERVER_LIMITS = "davenport.serverLimits";
+
     /**
      * The name of the request attribute containing the context base for
      * URL rewriting.
@@ -193,6 +227,16 @@ public class Davenport extends HttpServlet {
 
     private ResourceFilter filter;
 
+    private ExecutorService executor;
+
+    private BufferPool bufferPool;
+
+    private AsyncTransport asyncTransport;
+
+    private Executor requestExecutor;
+
+    private boolean virtualThreads;
+
     private UniAddress defaultServer;
 
     private NtlmPasswordAuthentication anonymousCredentials;
@@ -323,8 +367,14 @@ public class Davenport extends HttpServlet {
             this.anonymousCredentials =
                     new NtlmPasswordAuthentication(domain, user, password);
         }
+        virtualThreads = Boolean.valueOf(config.getInitParameter(
+                "virtualThreads")).booleanValue();
         initLockManager(config);
         initFilter(config);
+        initExecutor(config);
+        initBufferPool(config);
+        initServerLimits(config);
+        initAsyncTransport(config);
         initHandlers(config);
         initErrorHandlers(config);
     }
@@ -346,23 +396,60 @@ public class Davenport extends HttpServlet {
             filter.destroy();
             filter = null;
         }
+        if (executor != null) {
+            executor.shutdownNow();
+            executor = null;
+        }
+        requestExecutor = null;
+        if (asyncTransport != null) {
+            asyncTransport.destroy();
+            asyncTransport = null;
+        }
+        if (bufferPool != null) {
+            Log.log(Log.DEBUG, "Buffer pool statistics: {0}", bufferPool);
+            bufferPool.clear();
+            bufferPool = null;
+        }
         ServletContext context = getServletContext();
         context.removeAttribute(LOCK_MANAGER);
         context.removeAttribute(RESOURCE_FILTER);
+        context.removeAttribute(EXECUTOR);
+        context.removeAttribute(BUFFER_POOL);
+        context.removeAttribute(SERVER_LIMITS);
+        context.removeAttribute(ASYNC_TRANSPORT);
         context.removeAttribute(REQUEST_URI_CHARSET);
         Log.log(Log.DEBUG, "Davenport finished destroy.");
     }
 
     /**
      * Authenticates the user against a domain before forwarding the
-     * request to the appropriate handler.
+     * request to the appropriate handler.  If virtual threads are enabled,
+     * the request is serviced on a virtual thread rather than the
+     * container's request thread.
      *
      * @param request The request being handled.
      * @param response The response supplied by the servlet.
      * @throws IOException If an IO error occurs while handling the request.
      * @throws ServletException If an application error occurs.
      */
-    protected void service(HttpServletRequest request,
+    protected void service(final HttpServletRequest request,
+            final HttpServletResponse response) throws IOException,
+                    ServletException {
+        Executor requestExecutor = this.requestExecutor;
+        if (requestExecutor != null && asyncTransport.isAvailable(request)) {
+            asyncTransport.dispatch(request, response, requestExecutor,
+                    new Callable() {
+                public Object call() throws Exception {
+                    serviceRequest(request, response);
+                    return null;
+                }
+            });
+            return;
+        }
+        serviceRequest(request, response);
+    }
+
+    private void serviceRequest(HttpServletRequest request,
             HttpServletResponse response) throws IOException, ServletException {
         Log.log(Log.INFORMATION, "Received {0} request for \"{1}\".",
                 new Object[] { request.getMethod(), request.getRequestURL() });
@@ -673,6 +760,7 @@ public class Davenport extends HttpServlet {
         handlers.put("COPY", new DefaultCopyHandler());
         handlers.put("MOVE", new DefaultMoveHandler());
         handlers.put("PUT", new DefaultPutHandler());
+        handlers.put("PATCH", new DefaultPatchHandler());
         handlers.put("MKCOL", new DefaultMkcolHandler());
         if (config.getServletContext().getAttribute(LOCK_MANAGER) != null) {
             handlers.put("LOCK", new DefaultLockHandler());
@@ -732,6 +820,96 @@ public class Davenport extends HttpServlet {
                 errorHandlers.toArray(new ErrorHandler[0]);
     }
 
+    private void initExecutor(ServletConfig config) {
+        String transferThreads = config.getInitParameter("transferThreads");
+        int threads = (transferThreads != null) ?
+                Integer.parseInt(transferThreads) : 32;
+        if (threads <= 0) {
+            Log.log(Log.DEBUG, "Background transfers disabled.");
+            return;
+        }
+        DavenportThreadFactory factory = new DavenportThreadFactory(
+                "Davenport-Transfer-", virtualThreads);
+        // virtual threads are started per task rather than pooled.
+        executor = factory.newPerTaskExecutor();
+        if (executor != null) {
+            Log.log(Log.DEBUG, "Installed virtual thread transfer executor.");
+        } else {
+            ThreadPoolExecutor executor = new ThreadPoolExecutor(threads,
+                    threads, 60l, TimeUnit.SECONDS, new LinkedBlockingQueue(),
+                            factory);
+            executor.allowCoreThreadTimeOut(true);
+            this.executor = executor;
+            Log.log(Log.DEBUG, "Installed transfer executor with {0} threads.",
+                    new Integer(threads));
+        }
+        config.getServletContext().setAttribute(EXECUTOR, executor);
+    }
+
+    private void initBufferPool(ServletConfig config) {
+        String budget = config.getInitParameter("bufferPool.size");
+        String maximumBufferSize =
+                config.getInitParameter("bufferPool.maximumBufferSize");
+        bufferPool = new BufferPool((budget != null) ?
+                Long.parseLong(budget) : 33554432l,
+                        (maximumBufferSize != null) ?
+                                Integer.parseInt(maximumBufferSize) : 65536);
+        config.getServletContext().setAttribute(BUFFER_POOL, bufferPool);
+        Log.log(Log.DEBUG, "Installed buffer pool: {0}", bufferPool);
+    }
+
+    private void initServerLimits(ServletConfig config) {
+        String concurrency =
+                config.getInitParameter("treeOperations.concurrency");
+        ServerLimits serverLimits = new ServerLimits((concurrency != null) ?
+                Integer.parseInt(concurrency) : 8);
+        Enumeration parameters = config.getInitParameterNames();
+        while (parameters.hasMoreElements()) {
+            String name = (String) parameters.nextElement();
+            if (!name.startsWith("treeOperations.concurrency.")) continue;
+            serverLimits.setLimit(name.substring(27), Integer.parseInt(
+                    config.getInitParameter(name)));
+        }
+        config.getServletContext().setAttribute(SERVER_LIMITS, serverLimits);
+        Log.log(Log.DEBUG, "Installed server limits: {0}", serverLimits);
+    }
+
+    private void initAsyncTransport(ServletConfig config) {
+        boolean asyncTransfers = Boolean.valueOf(config.getInitParameter(
+                "asyncTransfers")).booleanValue();
+        if (!asyncTransfers && !virtualThreads) return;
+        try {
+            // loaded by name; the implementation requires Servlet 3.1.
+            AsyncTransport asyncTransport = (AsyncTransport) Class.forName(
+                    "smbdav.ServletAsyncTransport").newInstance();
+            asyncTransport.init(config);
+            this.asyncTransport = asyncTransport;
+        } catch (Throwable throwable) {
+            Log.log(Log.WARNING,
+                    "Asynchronous servlet support is not available: {0}",
+                            throwable);
+            return;
+        }
+        if (asyncTransfers) {
+            config.getServletContext().setAttribute(ASYNC_TRANSPORT,
+                    asyncTransport);
+        }
+        if (!virtualThreads) return;
+        final DavenportThreadFactory factory =
+                new DavenportThreadFactory("Davenport-Request-", true);
+        if (!factory.isVirtual()) {
+            Log.log(Log.WARNING, "Virtual threads are not supported by " +
+                    "this JVM; requests will be serviced on container threads.");
+            return;
+        }
+        requestExecutor = new Executor() {
+            public void execute(Runnable task) {
+                factory.newThread(task).start();
+            }
+        };
+        Log.log(Log.DEBUG, "Requests will be serviced on virtual threads.");
+    }
+
     private void initFilter(ServletConfig config) throws ServletException {
         String fileFilters = config.getInitParameter("fileFilters");
         if (fileFilters == null) return;
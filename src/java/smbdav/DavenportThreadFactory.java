@@ -0,0 +1,139 @@
+/* Davenport WebDAV SMB Gateway
+ * Copyright (C) 2004  Eric Glass
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+package smbdav;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Creates the threads on which Davenport performs work outside of the
+ * container's request threads.  Threads are named with a common prefix
+ * followed by a sequence number.
+ * <p>
+ * If virtual threads are requested and the runtime supports them (Java 21
+ * or later), virtual threads are created; otherwise, daemon platform
+ * threads are used.  Virtual threads are obtained reflectively so that
+ * this class may be compiled and run on the minimum supported runtime
+ * (Java 7), where they are unavailable.
+ *
+ * @author Eric Glass
+ */
+public class DavenportThreadFactory implements ThreadFactory {
+
+    private final String prefix;
+
+    private final ThreadFactory virtualFactory;
+
+    private int count = 0;
+
+    /**
+     * Creates a factory for daemon platform threads.
+     *
+     * @param prefix The prefix for the names of created threads.
+     */
+    public DavenportThreadFactory(String prefix) {
+        this(prefix, false);
+    }
+
+    /**
+     * Creates a factory for virtual or platform threads.
+     *
+     * @param prefix The prefix for the names of created threads.
+     * @param virtual Whether virtual threads should be created, if
+     * supported by the runtime.
+     */
+    public DavenportThreadFactory(String prefix, boolean virtual) {
+        this.prefix = prefix;
+        this.virtualFactory = virtual ? createVirtualFactory(prefix) : null;
+    }
+
+    /**
+     * Indicates whether the running JVM supports virtual threads.
+     *
+     * @return <code>true</code> if virtual threads can be created.
+     */
+    public static boolean isVirtualSupported() {
+        return createVirtualFactory("") != null;
+    }
+
+    /**
+     * Indicates whether this factory creates virtual threads.
+     *
+     * @return <code>true</code> if created threads are virtual.
+     */
+    public boolean isVirtual() {
+        return virtualFactory != null;
+    }
+
+    /**
+     * Creates an unbounded executor which runs each task on a new thread
+     * from this factory.  This is only worthwhile for virtual threads,
+     * which are too cheap to pool.
+     *
+     * @return An <code>ExecutorService</code> starting a thread per task,
+     * or <code>null</code> if this factory does not create virtual
+     * threads.
+     */
+    public ExecutorService newPerTaskExecutor() {
+        if (virtualFactory == null) return null;
+        try {
+            return (ExecutorService) Executors.class.getMethod(
+                    "newThreadPerTaskExecutor", new Class[] {
+                            ThreadFactory.class }).invoke(null,
+                                    new Object[] { this });
+        } catch (Exception ex) {
+            Log.log(Log.DEBUG, "Per-task executors are not available: {0}",
+                    ex);
+            return null;
+        }
+    }
+
+    public Thread newThread(Runnable task) {
+        if (virtualFactory != null) return virtualFactory.newThread(task);
+        Thread thread;
+        synchronized (this) {
+            thread = new Thread(task, prefix + (++count));
+        }
+        thread.setDaemon(true);
+        return thread;
+    }
+
+    public String toString() {
+        return "DavenportThreadFactory[prefix=" + prefix + ",virtual=" +
+                isVirtual() + "]";
+    }
+
+    private static ThreadFactory createVirtualFactory(String prefix) {
+        try {
+            Class builderClass = Class.forName("java.lang.Thread$Builder");
+            Object builder = Thread.class.getMethod("ofVirtual",
+                    new Class[0]).invoke(null, new Object[0]);
+            builder = builderClass.getMethod("name", new Class[] {
+                    String.class, Long.TYPE }).invoke(builder, new Object[] {
+                            prefix, new Long(1) });
+            return (ThreadFactory) builderClass.getMethod("factory",
+                    new Class[0]).invoke(builder, new Object[0]);
+        } catch (Exception ex) {
+            Log.log(Log.DEBUG, "Virtual threads are not available: {0}", ex);
+            return null;
+        }
+    }
+
+}
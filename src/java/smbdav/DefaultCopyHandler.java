@@ -53,6 +53,15 @@ public class DefaultCopyHandler extends AbstractHandler {
      * "Overwrite" request header with a value of "T", then the request
      * succeeds and the file is overwritten.  If the "Overwrite" header is
      * not provided, a 412 (Precondition Failed) error is sent to the client.
+     * <br>
+     * A collection is copied with its members (unless the "Depth" header
+     * is "0", in which case only the collection itself is copied); members
+     * are copied in parallel, with the number of concurrent operations
+     * against each server bounded by the configured limits.  If any member
+     * could not be copied, a 207 (Multi-Status) response listing the
+     * failures is sent to the client.  A "Depth" of "1" results in a 400
+     * (Bad Request) error, and a destination within the source collection
+     * in a 403 (Forbidden) error.
      *
      * @param request The request being serviced.
      * @param response The servlet response.
@@ -74,6 +83,8 @@ public class DefaultCopyHandler extends AbstractHandler {
             response.sendError(HttpServletResponse.SC_BAD_REQUEST);
             return;
         }
+        boolean collection = file.isDirectory();
+        if (collection && !destination.endsWith("/")) destination += "/";
         SmbFile destinationFile = createSmbFile(destination, auth);
         if (destinationFile.equals(file)) {
             response.sendError(HttpServletResponse.SC_FORBIDDEN,
@@ -81,6 +92,21 @@ public class DefaultCopyHandler extends AbstractHandler {
                             "sameResource", null, request.getLocale()));
             return;
         }
+        int depth = SmbDAVUtilities.parseDepth(request.getHeader("Depth"));
+        if (collection) {
+            if (depth == SmbDAVUtilities.CHILDREN_DEPTH) {
+                response.sendError(HttpServletResponse.SC_BAD_REQUEST);
+                return;
+            }
+            if (destinationFile.toString().toLowerCase().startsWith(
+                    file.toString().toLowerCase())) {
+                response.sendError(HttpServletResponse.SC_FORBIDDEN,
+                        SmbDAVUtilities.getResource(DefaultCopyHandler.class,
+                                "destinationWithinSource", null,
+                                        request.getLocale()));
+                return;
+            }
+        }
         int result = checkLockOwnership(request, destinationFile);
         if (result != HttpServletResponse.SC_OK) {
             response.sendError(result);
@@ -106,7 +132,19 @@ public class DefaultCopyHandler extends AbstractHandler {
                 return;
             }
         }
-        file.copyTo(destinationFile);
+        if (collection) {
+            String href = request.getHeader("Destination");
+            if (!href.endsWith("/")) href += "/";
+            MultiStatus multiStatus = new TreeCopy(getFilter(), getExecutor(),
+                    getServerLimits()).copy(file, destinationFile, href,
+                            depth != SmbDAVUtilities.RESOURCE_ONLY_DEPTH);
+            if (multiStatus.hasFailures()) {
+                multiStatus.send(response);
+                return;
+            }
+        } else {
+            file.copyTo(destinationFile);
+        }
         response.setStatus(overwritten ? HttpServletResponse.SC_NO_CONTENT :
                 HttpServletResponse.SC_CREATED);
         response.flushBuffer();
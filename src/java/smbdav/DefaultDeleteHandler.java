@@ -43,6 +43,15 @@ public class DefaultDeleteHandler extends AbstractHandler {
      * <br>
      * If the specified file does not exist, a 404 (Not Found) error is
      * sent to the client.
+     * <br>
+     * A collection is deleted along with its members; members are deleted
+     * in parallel (directories after their contents), with the number of
+     * concurrent operations against each server bounded by the configured
+     * limits.  If any member could not be deleted, a 207 (Multi-Status)
+     * response listing the failures is sent to the client; the
+     * collections containing those members are left in place.  Shares
+     * and servers can't be deleted; a 403 (Forbidden) error is sent to
+     * the client.
      *
      * @param request The request being serviced.
      * @param response The servlet response.
@@ -72,7 +81,23 @@ public class DefaultDeleteHandler extends AbstractHandler {
         if (lockManager != null) {
             file = lockManager.getLockedResource(file, auth);
         }
-        file.delete();
+        if (file.isDirectory()) {
+            // shares and servers can't be removed; don't empty them.
+            if (file.getType() != SmbFile.TYPE_FILESYSTEM) {
+                response.sendError(HttpServletResponse.SC_FORBIDDEN);
+                return;
+            }
+            String href = getRequestURL(request);
+            if (!href.endsWith("/")) href += "/";
+            MultiStatus multiStatus = new TreeDelete(getExecutor(),
+                    getServerLimits()).delete(file, href);
+            if (multiStatus.hasFailures()) {
+                multiStatus.send(response);
+                return;
+            }
+        } else {
+            file.delete();
+        }
         response.setStatus(HttpServletResponse.SC_NO_CONTENT);
         response.flushBuffer();
     }
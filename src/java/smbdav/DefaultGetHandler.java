@@ -20,27 +20,45 @@
 package smbdav;
 
 import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
 import java.io.InputStream;
 import java.io.IOException;
 import java.io.OutputStream;
 
 import java.net.URL;
 
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+
+import java.security.MessageDigest;
+
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.Locale;
 import java.util.Map;
-import java.util.Timer;
-import java.util.TimerTask;
+import java.util.StringTokenizer;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.FutureTask;
+
+import java.util.concurrent.atomic.AtomicLong;
 
 import javax.servlet.ServletConfig;
 import javax.servlet.ServletContext;
 import javax.servlet.ServletException;
 import javax.servlet.ServletOutputStream;
+import javax.servlet.UnavailableException;
 
 import javax.servlet.http.Cookie;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
-import javax.servlet.http.HttpSession;
 
 import javax.xml.transform.Source;
 import javax.xml.transform.Templates;
@@ -50,14 +68,21 @@ import javax.xml.transform.TransformerException;
 
 import javax.xml.transform.dom.DOMSource;
 
+import javax.xml.transform.sax.SAXTransformerFactory;
+import javax.xml.transform.sax.TransformerHandler;
+
 import javax.xml.transform.stream.StreamResult;
 import javax.xml.transform.stream.StreamSource;
 
+import jcifs.Config;
+
 import jcifs.smb.NtlmPasswordAuthentication;
 import jcifs.smb.SmbFile;
+import jcifs.smb.SmbFileFilter;
 import jcifs.smb.SmbFileInputStream;
+import jcifs.smb.SmbRandomAccessFile;
 
-import org.w3c.dom.Document;
+import org.xml.sax.SAXException;
 
 /**
  * Default implementation of a handler for requests using the HTTP GET
@@ -140,24 +165,51 @@ import org.w3c.dom.Document;
  */
 public class DefaultGetHandler extends AbstractHandler {
 
-    private static final Timer TIMER = new Timer(true);
-
-    private final Map templateMap = new HashMap();
+    private final ConcurrentMap templatesCache = new ConcurrentHashMap();
 
-    private final Map defaultTemplates = new HashMap();
+    private final AtomicLong templatesClock = new AtomicLong();
 
     private final Map configurations = new HashMap();
 
+    private TransformerFactory transformerFactory;
+
+    private SAXTransformerFactory saxTransformerFactory;
+
     private String stylesheetLocation;
 
     private String configurationLocation;
 
+    private int templatesCacheSize;
+
+    private long rangeCoalescingGap;
+
+    private int readAheadDepth;
+
+    private int readAheadChunkSize;
+
+    private boolean archiveEnabled;
+
+    private int archivePrefetch;
+
+    private ContentCache contentCache;
+
+    private SmallFileCache smallFileCache;
+
+    private ListingCache listingCache;
+
     private PropertiesBuilder propertiesBuilder;
 
     public void init(ServletConfig config) throws ServletException {
         super.init(config);
         propertiesBuilder = new DefaultPropertiesBuilder();
         propertiesBuilder.init(config);
+        transformerFactory = TransformerFactory.newInstance();
+        if (transformerFactory.getFeature(SAXTransformerFactory.FEATURE)) {
+            saxTransformerFactory = (SAXTransformerFactory) transformerFactory;
+        } else {
+            Log.log(Log.DEBUG, "Transformer factory does not accept SAX " +
+                    "input; listings will not be streamed.");
+        }
         stylesheetLocation = config.getInitParameter("directory.xsl");
         if (stylesheetLocation == null) {
             stylesheetLocation = "/META-INF/directory.xsl";
@@ -167,18 +219,98 @@ public class DefaultGetHandler extends AbstractHandler {
         if (configurationLocation == null) {
             configurationLocation = "/META-INF/configuration.html";
         }
+        String templatesCacheSize =
+                config.getInitParameter("directory.cacheSize");
+        this.templatesCacheSize = (templatesCacheSize != null) ?
+                Integer.parseInt(templatesCacheSize) : 64;
+        String listingCacheSize =
+                config.getInitParameter("directory.listingCacheSize");
+        long listingCacheBytes = (listingCacheSize != null) ?
+                Long.parseLong(listingCacheSize) : 8388608l;
+        if (listingCacheBytes > 0) {
+            listingCache = new ListingCache(listingCacheBytes);
+        }
+        String rangeCoalescingGap =
+                config.getInitParameter("rangeCoalescingGap");
+        this.rangeCoalescingGap = (rangeCoalescingGap != null) ?
+                Long.parseLong(rangeCoalescingGap) : 8192l;
+        String readAheadDepth = config.getInitParameter("readAhead.depth");
+        this.readAheadDepth = (readAheadDepth != null) ?
+                Integer.parseInt(readAheadDepth) : 4;
+        String readAheadChunkSize =
+                config.getInitParameter("readAhead.chunkSize");
+        this.readAheadChunkSize = (readAheadChunkSize != null) ?
+                Integer.parseInt(readAheadChunkSize) :
+                        Config.getInt("jcifs.smb.client.rcv_buf_size",
+                                60416) - 70;
+        String archiveEnabled = config.getInitParameter("archive.enabled");
+        this.archiveEnabled = (archiveEnabled == null) ||
+                Boolean.valueOf(archiveEnabled).booleanValue();
+        String archivePrefetch = config.getInitParameter("archive.prefetch");
+        this.archivePrefetch = (archivePrefetch != null) ?
+                Integer.parseInt(archivePrefetch) : 4;
+        String cacheDirectory =
+                config.getInitParameter("contentCache.directory");
+        if (cacheDirectory != null) {
+            String cacheSize = config.getInitParameter("contentCache.size");
+            String maximumEntrySize =
+                    config.getInitParameter("contentCache.maximumEntrySize");
+            try {
+                contentCache = new ContentCache(new File(cacheDirectory),
+                        (cacheSize != null) ? Long.parseLong(cacheSize) :
+                                1073741824l, (maximumEntrySize != null) ?
+                                        Long.parseLong(maximumEntrySize) :
+                                                104857600l);
+            } catch (IOException ex) {
+                Log.log(Log.CRITICAL, ex.getMessage());
+                throw new UnavailableException(ex.getMessage());
+            }
+            Log.log(Log.DEBUG, "Installed content cache: {0}", contentCache);
+        }
+        String smallFileCacheSize =
+                config.getInitParameter("smallFileCache.size");
+        long smallFileCacheBytes = (smallFileCacheSize != null) ?
+                Long.parseLong(smallFileCacheSize) : 16777216l;
+        if (smallFileCacheBytes > 0) {
+            String maximumSmallFile =
+                    config.getInitParameter("smallFileCache.maximumEntrySize");
+            String readerExpiry =
+                    config.getInitParameter("smallFileCache.readerExpiry");
+            smallFileCache = new SmallFileCache(smallFileCacheBytes,
+                    (maximumSmallFile != null) ?
+                            Integer.parseInt(maximumSmallFile) : 65536,
+                                    (readerExpiry != null) ?
+                                            Long.parseLong(readerExpiry) :
+                                                    30000l);
+        }
     }
 
     public void destroy() {
         propertiesBuilder.destroy();
         propertiesBuilder = null;
         stylesheetLocation = null;
-        synchronized (defaultTemplates) {
-            defaultTemplates.clear();
+        templatesCache.clear();
+        transformerFactory = null;
+        saxTransformerFactory = null;
+        if (listingCache != null) {
+            Log.log(Log.DEBUG, "Listing cache statistics: {0}", listingCache);
+            listingCache.clear();
+            listingCache = null;
         }
         synchronized (configurations) {
             configurations.clear();
         }
+        if (contentCache != null) {
+            Log.log(Log.DEBUG, "Content cache statistics: {0}", contentCache);
+            contentCache.clear();
+            contentCache = null;
+        }
+        if (smallFileCache != null) {
+            Log.log(Log.DEBUG, "Small file cache statistics: {0}",
+                    smallFileCache);
+            smallFileCache.clear();
+            smallFileCache = null;
+        }
         super.destroy();
     }
 
@@ -190,7 +322,47 @@ public class DefaultGetHandler extends AbstractHandler {
      * collection listing is retrieved as from a PROPFIND request with
      * a depth of 1 (the collection and its immediate contents).  The
      * directory listing stylesheet is applied to the resultant XML
-     * document.
+     * document.  Rendered listings are cached per user, view and locale,
+     * and are given an entity tag derived from the names, sizes and
+     * modification times of the collection's children; an unchanged
+     * listing is returned from the cache (or as a 304 (Not Modified)
+     * response, if the client supplies a matching
+     * "<code>If-None-Match</code>" header) without being re-rendered.
+     * <br>
+     * Requests for byte ranges of a non-collection resource
+     * (via the "<code>Range</code>" header, subject to any
+     * "<code>If-Range</code>" condition) are satisfied with a 206 (Partial
+     * Content) response; only the requested portion of the file is read
+     * from the server.  Requests for multiple ranges are sorted and
+     * coalesced (merging ranges separated by no more than the
+     * "<code>rangeCoalescingGap</code>" initialization parameter), and
+     * returned as a <code>multipart/byteranges</code> entity read through
+     * a single file handle.  If none of the requested ranges can be
+     * satisfied, a 416 (Requested Range Not Satisfiable) error is sent to
+     * the client.
+     * <br>
+     * When a shared transfer executor is available, file content larger
+     * than a single read is read ahead of the client on background threads
+     * (see the "<code>readAhead.depth</code>" and
+     * "<code>readAhead.chunkSize</code>" initialization parameters).
+     * <br>
+     * If a content cache directory is configured (via the
+     * "<code>contentCache.directory</code>" initialization parameter),
+     * complete files are stored locally as they are sent and subsequent
+     * requests for the same version of the file are served from the cache.
+     * The file is still opened with the user's credentials before cached
+     * content is returned.
+     * <br>
+     * Files no larger than the "<code>smallFileCache.maximumEntrySize</code>"
+     * initialization parameter are read in a single pass and held in
+     * memory, so that repeated requests do not require the file to be
+     * read from the server.
+     * <br>
+     * A request for a collection with the query parameter
+     * "<code>archive=zip</code>" returns the collection and all of its
+     * descendants as a ZIP archive, streamed as the tree is walked (unless
+     * disabled via the "<code>archive.enabled</code>" initialization
+     * parameter).
      * <br>
      * If the specified file does not exist, a 404 (Not Found) error is
      * sent to the client.
@@ -228,6 +400,11 @@ public class DefaultGetHandler extends AbstractHandler {
                 showConfiguration(request, response);
                 return;
             }
+            if (archiveEnabled && "zip".equals(
+                    request.getParameter("archive"))) {
+                sendArchive(file, response);
+                return;
+            }
             String view = request.getParameter("view");
             if (view == null) {
                 Cookie[] cookies = request.getCookies();
@@ -245,8 +422,6 @@ public class DefaultGetHandler extends AbstractHandler {
                 cookie.setPath("/");
                 if (view.equals("")) {
                     view = null;
-                    HttpSession session = request.getSession(false);
-                    if (session != null) clearTemplates(session);
                     cookie.setMaxAge(0);
                 } else {
                     cookie.setMaxAge(Integer.MAX_VALUE);
@@ -254,37 +429,66 @@ public class DefaultGetHandler extends AbstractHandler {
                 response.addCookie(cookie);
             }
             Locale locale = request.getLocale();
-            Templates templates = getDefaultTemplates(locale);
+            Templates templates;
             if (view != null) {
                 Log.log(Log.DEBUG, "Custom view installed: {0}", view);
-                templates = null;
                 try {
-                    HttpSession session = request.getSession(false);
-                    if (session != null) {
-                        templates = getTemplates(session);
-                    }
-                    if (templates == null) {
-                        Source source = getStylesheet(view, false, locale);
-                        templates = TransformerFactory.newInstance(
-                                ).newTemplates(source);
-                        if (session == null) session = request.getSession(true);
-                        setTemplates(session, templates);
-                    }
+                    templates = getTemplates(view, false, locale);
                 } catch (Exception ex) {
                     Log.log(Log.WARNING, "Unable to install stylesheet: {0}",
                             ex);
-                    HttpSession session = request.getSession(false);
-                    if (session != null) clearTemplates(session);
                     showConfiguration(request, response);
                     return;
                 }
+            } else {
+                try {
+                    templates = getTemplates(stylesheetLocation, true, locale);
+                } catch (Exception ex) {
+                    throw new ServletException(SmbDAVUtilities.getResource(
+                            DefaultGetHandler.class, "stylesheetError",
+                                    new Object[] { ex }, null));
+                }
+            }
+            String listingKey = null;
+            String listingTag = null;
+            if (listingCache != null) {
+                listingKey = requestUrl + "|" + ((view != null) ? view : "") +
+                        "|" + locale + "|" + ((auth != null) ?
+                                auth.getName() : "");
+                listingTag = getListingTag(file, listingKey);
+            }
+            if (listingTag != null) {
+                response.setHeader("ETag", listingTag);
+                response.setHeader("Cache-Control", "private");
+                if (matchesETag(request.getHeader("If-None-Match"),
+                        listingTag)) {
+                    Log.log(Log.DEBUG, "Listing unchanged.");
+                    response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+                    response.flushBuffer();
+                    return;
+                }
+                byte[] listing = listingCache.get(listingKey, listingTag);
+                if (listing != null) {
+                    Log.log(Log.DEBUG, "Serving cached listing.");
+                    response.setContentType("text/html; charset=\"utf-8\"");
+                    response.setContentLength(listing.length);
+                    response.getOutputStream().write(listing);
+                    response.flushBuffer();
+                    return;
+                }
             }
             PropertiesDirector director = new PropertiesDirector(
                     getPropertiesBuilder(), getFilter());
-            Document properties = null;
-            properties = director.getAllProperties(file, requestUrl, 1);
             try {
-                Transformer transformer = templates.newTransformer();
+                TransformerHandler handler = null;
+                Transformer transformer;
+                if (saxTransformerFactory != null) {
+                    handler = saxTransformerFactory.newTransformerHandler(
+                            templates);
+                    transformer = handler.getTransformer();
+                } else {
+                    transformer = templates.newTransformer();
+                }
                 transformer.setParameter("href", requestUrl);
                 transformer.setParameter("url", file.toString());
                 transformer.setParameter("unc", file.getUncPath());
@@ -316,14 +520,32 @@ public class DefaultGetHandler extends AbstractHandler {
                 }
                 transformer.setParameter("type", type);
                 transformer.setOutputProperty("encoding", "UTF-8");
-                ByteArrayOutputStream collector = new ByteArrayOutputStream();
-                transformer.transform(new DOMSource(properties),
-                        new StreamResult(collector));
                 response.setContentType("text/html; charset=\"utf-8\"");
-                collector.writeTo(response.getOutputStream());
+                OutputStream output = response.getOutputStream();
+                CapturingOutputStream capture = null;
+                if (listingTag != null) {
+                    capture = new CapturingOutputStream(output,
+                            listingCache.getMaximumEntrySize());
+                    output = capture;
+                }
+                if (handler != null) {
+                    handler.setResult(new StreamResult(output));
+                    director.writeAllProperties(file, requestUrl, 1, handler);
+                } else {
+                    transformer.transform(new DOMSource(
+                            director.getAllProperties(file, requestUrl, 1)),
+                                    new StreamResult(output));
+                }
                 response.flushBuffer();
+                byte[] listing = (capture != null) ? capture.getCaptured() :
+                        null;
+                if (listing != null) {
+                    listingCache.put(listingKey, listingTag, listing);
+                }
             } catch (TransformerException ex) {
                 throw new IOException(ex.getMessage());
+            } catch (SAXException ex) {
+                throw new IOException(ex.getMessage());
             }
             return;
         }
@@ -342,18 +564,44 @@ public class DefaultGetHandler extends AbstractHandler {
         }
         String contentType = getServletConfig().getServletContext().getMimeType(
                 file.getName());
-        response.setContentType((contentType != null) ? contentType :
-                "application/octet-stream");
-        response.setContentLength((int) file.length());
-        SmbFileInputStream input = new SmbFileInputStream(file);
-        ServletOutputStream output = response.getOutputStream();
-        byte[] buf = new byte[8192];
-        int count;
-        while ((count = input.read(buf)) != -1) {
-            output.write(buf, 0, count);
+        if (contentType == null) contentType = "application/octet-stream";
+        response.setContentType(contentType);
+        response.setHeader("Accept-Ranges", "bytes");
+        long length = file.length();
+        ByteRange[] ranges = null;
+        if (checkRangeCondition(request, etag, modified)) {
+            ranges = ByteRange.parse(request.getHeader("Range"), length);
+        }
+        if (ranges != null && ranges.length == 0) {
+            Log.log(Log.DEBUG, "Requested range not satisfiable.");
+            response.setHeader("Content-Range", "bytes */" + length);
+            response.sendError(
+                    HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE);
+            return;
+        }
+        if (ranges != null && ranges.length > 1) {
+            ranges = ByteRange.coalesce(ranges, rangeCoalescingGap);
+            Log.log(Log.DEBUG, "Coalesced to {0} range(s).",
+                    new Integer(ranges.length));
+        }
+        byte[] content = getSmallFile(file, etag, length, auth);
+        ContentCache.Entry cached = (content == null) ?
+                getCachedContent(file, etag, length) : null;
+        try {
+            if (ranges != null && ranges.length == 1) {
+                sendRange(file, ranges[0], length, content, cached,
+                        request, response);
+            } else if (ranges != null) {
+                sendRanges(file, ranges, length, contentType, content,
+                        cached, response);
+            } else {
+                SmbDAVUtilities.setContentLength(response, length);
+                sendFile(file, etag, length, content, cached, request,
+                        response);
+            }
+        } finally {
+            if (cached != null) contentCache.release(cached);
         }
-        output.flush();
-        input.close();
     }
 
     /**
@@ -367,6 +615,400 @@ public class DefaultGetHandler extends AbstractHandler {
         return propertiesBuilder;
     }
 
+    /**
+     * Computes an entity tag for the listing of a collection, from the
+     * listing key and the names, sizes and modification times of the
+     * collection's (filtered) children.  This requires a single
+     * enumeration of the collection.  Returns <code>null</code> if the
+     * collection cannot be enumerated.
+     */
+    private String getListingTag(SmbFile file, String key) {
+        try {
+            SmbFileFilter filter = getFilter();
+            SmbFile[] children = (filter != null) ? file.listFiles(filter) :
+                    file.listFiles();
+            MessageDigest digest = MessageDigest.getInstance("MD5");
+            StringBuffer state = new StringBuffer(key);
+            state.append('|').append(Long.toHexString(file.lastModified()));
+            digest.update(state.toString().getBytes("UTF-8"));
+            for (int i = 0; i < children.length; i++) {
+                state.setLength(0);
+                state.append('|').append(children[i].getName());
+                state.append(':').append(Long.toHexString(
+                        children[i].lastModified()));
+                if (children[i].isFile()) {
+                    state.append(':').append(Long.toHexString(
+                            children[i].length()));
+                }
+                digest.update(state.toString().getBytes("UTF-8"));
+            }
+            byte[] hashBytes = digest.digest();
+            StringBuffer hash = new StringBuffer("W/\"");
+            for (int i = 0; i < hashBytes.length; i++) {
+                hash.append(Integer.toHexString((hashBytes[i] >> 4) & 0x0f));
+                hash.append(Integer.toHexString(hashBytes[i] & 0x0f));
+            }
+            return hash.append("\"").toString();
+        } catch (Exception ex) {
+            Log.log(Log.DEBUG, "Unable to fingerprint collection: {0}", ex);
+            return null;
+        }
+    }
+
+    private boolean matchesETag(String condition, String etag) {
+        if (condition == null) return false;
+        StringTokenizer tokenizer = new StringTokenizer(condition, ",");
+        while (tokenizer.hasMoreTokens()) {
+            String tag = tokenizer.nextToken().trim();
+            if (tag.equals("*") || tag.equals(etag)) return true;
+        }
+        return false;
+    }
+
+    private boolean checkRangeCondition(HttpServletRequest request,
+            String etag, long modified) {
+        String condition = request.getHeader("If-Range");
+        if (condition == null) return true;
+        condition = condition.trim();
+        Log.log(Log.DEBUG, "Checking If-Range: {0}", condition);
+        // If-Range requires a strong comparison, which weak tags never pass.
+        if (condition.startsWith("W/")) return false;
+        if (condition.startsWith("\"")) {
+            return condition.equals(etag) && !etag.startsWith("W/");
+        }
+        try {
+            long timestamp = request.getDateHeader("If-Range");
+            return (timestamp != -1 && timestamp == (modified / 1000 * 1000));
+        } catch (IllegalArgumentException ex) {
+            Log.log(Log.DEBUG, "Malformed If-Range header: {0}", condition);
+            return false;
+        }
+    }
+
+    /**
+     * Returns the complete content of the file if it is small enough to be
+     * held in memory, from the small file cache where possible.  A user not
+     * recently verified as able to read a cached file must first open it on
+     * the server.
+     */
+    private byte[] getSmallFile(SmbFile file, String etag, long length,
+            NtlmPasswordAuthentication auth) throws IOException {
+        if (smallFileCache == null || etag == null ||
+                length > smallFileCache.getMaximumEntrySize()) {
+            return null;
+        }
+        String path = file.getCanonicalPath();
+        String user = (auth != null) ? auth.getName() : "";
+        SmallFileCache.Entry entry = smallFileCache.get(path, etag);
+        if (entry != null && entry.getData().length == length) {
+            if (!entry.isReader(user)) {
+                new SmbRandomAccessFile(file, "r").close();
+                entry.addReader(user);
+            }
+            Log.log(Log.DEBUG, "Serving \"{0}\" from memory.", file);
+            return entry.getData();
+        }
+        byte[] content = new byte[(int) length];
+        InputStream input = new SmbFileInputStream(file);
+        try {
+            int offset = 0;
+            int count;
+            while (offset < content.length && (count = input.read(content,
+                    offset, content.length - offset)) != -1) {
+                offset += count;
+            }
+            if (offset != content.length || input.read() != -1) {
+                Log.log(Log.DEBUG, "File changed while reading: {0}", file);
+                return null;
+            }
+        } finally {
+            input.close();
+        }
+        smallFileCache.put(path, etag, content, user);
+        return content;
+    }
+
+    /**
+     * Returns the cached content for the file, if present and current.
+     * Before returning a cached entry, the file is opened with the
+     * requesting user's credentials to confirm that they may read it.
+     */
+    private ContentCache.Entry getCachedContent(SmbFile file, String etag,
+            long length) throws IOException {
+        if (contentCache == null || etag == null) return null;
+        ContentCache.Entry entry = contentCache.get(file.getCanonicalPath(),
+                etag);
+        if (entry == null) return null;
+        if (entry.getLength() != length) {
+            contentCache.release(entry);
+            return null;
+        }
+        try {
+            new SmbRandomAccessFile(file, "r").close();
+        } catch (IOException ex) {
+            contentCache.release(entry);
+            throw ex;
+        }
+        Log.log(Log.DEBUG, "Serving \"{0}\" from cache.", file);
+        return entry;
+    }
+
+    private void sendFile(SmbFile file, String etag, long length,
+            byte[] content, ContentCache.Entry cached,
+                    HttpServletRequest request, HttpServletResponse response)
+                            throws IOException {
+        OutputStream output = response.getOutputStream();
+        if (content != null) {
+            output.write(content);
+            output.flush();
+            return;
+        }
+        if (cached != null) {
+            sendCached(cached, 0, length, output);
+            output.flush();
+            return;
+        }
+        if (sendAsync(file, 0, length, length, request, response)) return;
+        OutputStream cacheOutput = null;
+        if (contentCache != null && etag != null) {
+            cacheOutput = contentCache.populate(file.getCanonicalPath(), etag,
+                    length, output);
+            if (cacheOutput != null) output = cacheOutput;
+        }
+        try {
+            if (!sendReadAhead(file, 0, length, output)) {
+                InputStream input = new SmbFileInputStream(file);
+                BufferPool bufferPool = getBufferPool();
+                int size = getTransferSize(bufferPool);
+                byte[] buf = bufferPool.borrow(size);
+                try {
+                    int count;
+                    while ((count = input.read(buf, 0, size)) != -1) {
+                        output.write(buf, 0, count);
+                    }
+                } finally {
+                    bufferPool.release(buf);
+                    input.close();
+                }
+            }
+            output.flush();
+        } finally {
+            if (cacheOutput != null) cacheOutput.close();
+        }
+    }
+
+    private void sendRange(SmbFile file, ByteRange range, long length,
+            byte[] content, ContentCache.Entry cached,
+                    HttpServletRequest request, HttpServletResponse response)
+                            throws IOException {
+        Log.log(Log.DEBUG, "Sending range {0} of \"{1}\".",
+                new Object[] { range, file });
+        response.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+        response.setHeader("Content-Range", range.toContentRange(length));
+        SmbDAVUtilities.setContentLength(response, range.getLength());
+        ServletOutputStream output = response.getOutputStream();
+        if (content != null) {
+            output.write(content, (int) range.getStart(),
+                    (int) range.getLength());
+            output.flush();
+            return;
+        }
+        if (cached != null) {
+            sendCached(cached, range.getStart(), range.getLength(), output);
+            output.flush();
+            return;
+        }
+        if (sendAsync(file, range.getStart(), range.getLength(), length,
+                request, response)) {
+            return;
+        }
+        if (sendReadAhead(file, range.getStart(), range.getLength(),
+                output)) {
+            output.flush();
+            return;
+        }
+        SmbRandomAccessFile input = new SmbRandomAccessFile(file, "r");
+        BufferPool bufferPool = getBufferPool();
+        int size = getTransferSize(bufferPool);
+        byte[] buf = bufferPool.borrow(size);
+        try {
+            copyRange(input, range, output, buf, size);
+            output.flush();
+        } finally {
+            bufferPool.release(buf);
+            input.close();
+        }
+    }
+
+    /**
+     * Sends the given region of the file through a read-ahead stream.
+     * Returns <code>false</code> (having sent nothing) if read-ahead is
+     * disabled or the region fits in a single read.
+     */
+    private boolean sendReadAhead(SmbFile file, long offset, long length,
+            OutputStream output) throws IOException {
+        ExecutorService executor = getExecutor();
+        if (executor == null || readAheadDepth <= 0 ||
+                length <= readAheadChunkSize) {
+            return false;
+        }
+        BufferPool bufferPool = getBufferPool();
+        ReadAheadInputStream input = new ReadAheadInputStream(file, offset,
+                length, getTransferSize(bufferPool), readAheadDepth, executor,
+                        bufferPool);
+        try {
+            input.writeTo(output);
+        } finally {
+            input.close();
+        }
+        return true;
+    }
+
+    /**
+     * Hands the given region of the file to the asynchronous transport, if
+     * one is available.  The content is read through a read-ahead stream
+     * where possible; without one, only the complete file can be sent.
+     * Returns <code>false</code> (having sent nothing) if the region must
+     * be sent on the request thread.
+     */
+    private boolean sendAsync(SmbFile file, long offset, long length,
+            long fileLength, HttpServletRequest request,
+                    HttpServletResponse response) throws IOException {
+        AsyncTransport asyncTransport = getAsyncTransport();
+        if (asyncTransport == null || !asyncTransport.isAvailable(request)) {
+            return false;
+        }
+        InputStream input;
+        ExecutorService executor = getExecutor();
+        if (executor != null && readAheadDepth > 0) {
+            BufferPool bufferPool = getBufferPool();
+            input = new ReadAheadInputStream(file, offset, length,
+                    getTransferSize(bufferPool), readAheadDepth, executor,
+                            bufferPool);
+        } else if (offset == 0 && length == fileLength) {
+            input = new SmbFileInputStream(file);
+        } else {
+            return false;
+        }
+        Log.log(Log.DEBUG, "Sending \"{0}\" asynchronously.", file);
+        asyncTransport.send(request, response, input);
+        return true;
+    }
+
+    private void sendArchive(SmbFile file, HttpServletResponse response)
+            throws IOException {
+        Log.log(Log.DEBUG, "Sending archive of \"{0}\".", file);
+        String name = file.getName();
+        if (name.endsWith("/")) name = name.substring(0, name.length() - 1);
+        if (name.equals("") || name.indexOf('/') != -1 ||
+                name.indexOf(':') != -1) {
+            name = "archive";
+        }
+        response.setContentType("application/zip");
+        response.setHeader("Content-Disposition", "attachment; filename=\"" +
+                name.replace('"', '_') + ".zip\"");
+        BufferPool bufferPool = getBufferPool();
+        CollectionArchive archive = new CollectionArchive(getFilter(),
+                getExecutor(), bufferPool, getTransferSize(bufferPool),
+                        readAheadDepth, archivePrefetch);
+        OutputStream output = response.getOutputStream();
+        archive.write(file, output);
+        output.flush();
+    }
+
+    /**
+     * Returns the size of the reads issued against the server: a single
+     * SMB read (as with read-ahead chunks), limited to the largest buffer
+     * the pool provides.  Buffers are borrowed once per transfer and
+     * reused for every read.
+     */
+    private int getTransferSize(BufferPool bufferPool) {
+        return Math.min(readAheadChunkSize, bufferPool.getMaximumBufferSize());
+    }
+
+    private void sendCached(ContentCache.Entry cached, long offset,
+            long length, OutputStream output) throws IOException {
+        FileInputStream input = new FileInputStream(cached.getFile());
+        try {
+            FileChannel channel = input.getChannel();
+            WritableByteChannel target = Channels.newChannel(output);
+            long end = offset + length;
+            while (offset < end) {
+                long count = channel.transferTo(offset, end - offset, target);
+                if (count <= 0) throw new EOFException();
+                offset += count;
+            }
+        } finally {
+            input.close();
+        }
+    }
+
+    private void sendRanges(SmbFile file, ByteRange[] ranges, long length,
+            String contentType, byte[] content, ContentCache.Entry cached,
+                    HttpServletResponse response) throws IOException {
+        Log.log(Log.DEBUG, "Sending {0} ranges of \"{1}\".",
+                new Object[] { new Integer(ranges.length), file });
+        String boundary = SmbDAVUtilities.generateUuid();
+        byte[][] headers = new byte[ranges.length][];
+        long contentLength = 0;
+        for (int i = 0; i < ranges.length; i++) {
+            headers[i] = ("\r\n--" + boundary + "\r\nContent-Type: " +
+                    contentType + "\r\nContent-Range: " +
+                            ranges[i].toContentRange(length) +
+                                    "\r\n\r\n").getBytes("ISO-8859-1");
+            contentLength += headers[i].length + ranges[i].getLength();
+        }
+        byte[] trailer = ("\r\n--" + boundary + "--\r\n").getBytes(
+                "ISO-8859-1");
+        contentLength += trailer.length;
+        response.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+        response.setContentType("multipart/byteranges; boundary=" + boundary);
+        SmbDAVUtilities.setContentLength(response, contentLength);
+        ServletOutputStream output = response.getOutputStream();
+        if (content != null || cached != null) {
+            for (int i = 0; i < ranges.length; i++) {
+                output.write(headers[i]);
+                if (content != null) {
+                    output.write(content, (int) ranges[i].getStart(),
+                            (int) ranges[i].getLength());
+                } else {
+                    sendCached(cached, ranges[i].getStart(),
+                            ranges[i].getLength(), output);
+                }
+            }
+            output.write(trailer);
+            output.flush();
+            return;
+        }
+        SmbRandomAccessFile input = new SmbRandomAccessFile(file, "r");
+        BufferPool bufferPool = getBufferPool();
+        int size = getTransferSize(bufferPool);
+        byte[] buf = bufferPool.borrow(size);
+        try {
+            for (int i = 0; i < ranges.length; i++) {
+                output.write(headers[i]);
+                copyRange(input, ranges[i], output, buf, size);
+            }
+            output.write(trailer);
+            output.flush();
+        } finally {
+            bufferPool.release(buf);
+            input.close();
+        }
+    }
+
+    private void copyRange(SmbRandomAccessFile input, ByteRange range,
+            OutputStream output, byte[] buf, int size) throws IOException {
+        input.seek(range.getStart());
+        long remaining = range.getLength();
+        int count;
+        while (remaining > 0 && (count = input.read(buf, 0,
+                (int) Math.min(size, remaining))) != -1) {
+            output.write(buf, 0, count);
+            remaining -= count;
+        }
+    }
+
     private void showConfiguration(HttpServletRequest request,
             HttpServletResponse response) throws ServletException, IOException {
         response.setContentType("text/html");
@@ -399,57 +1041,62 @@ public class DefaultGetHandler extends AbstractHandler {
         }
     }
 
-    private Templates getTemplates(HttpSession session) throws ServletException,
-            IOException {
-        String id = session.getId();
-        TemplateTracker tracker;
-        synchronized (templateMap) {
-            tracker = (TemplateTracker) templateMap.get(id);
-        }
-        if (tracker == null) return null;
-        Log.log(Log.DEBUG, "Retrieved precompiled stylesheet.");
-        return tracker.getTemplates();
-    }
-
-    private void clearTemplates(HttpSession session)
-            throws ServletException, IOException {
-        String id = session.getId();
-        TemplateTracker tracker;
-        synchronized (templateMap) {
-            tracker = (TemplateTracker) templateMap.remove(id);
-        }
-        if (tracker != null) {
-            Log.log(Log.DEBUG, "Removing precompiled stylesheet.");
-            tracker.cancel();
+    /**
+     * Returns the compiled stylesheet for the given location and locale.
+     * Compiled stylesheets are shared by all requests; concurrent requests
+     * for a stylesheet which is not yet cached wait for a single
+     * compilation rather than each compiling it.  Stylesheets which fail
+     * to compile are not cached.
+     */
+    private Templates getTemplates(final String location,
+            final boolean allowExternal, final Locale locale)
+                    throws Exception {
+        String key = location + "|" + allowExternal + "|" + locale;
+        CachedTemplates entry = (CachedTemplates) templatesCache.get(key);
+        if (entry == null) {
+            CachedTemplates created = new CachedTemplates(new Callable() {
+                public Object call() throws Exception {
+                    Source source = getStylesheet(location, allowExternal,
+                            locale);
+                    return transformerFactory.newTemplates(source);
+                }
+            });
+            entry = (CachedTemplates) templatesCache.putIfAbsent(key, created);
+            if (entry == null) {
+                Log.log(Log.DEBUG, "Compiling stylesheet \"{0}\" for {1}.",
+                        new Object[] { location, locale });
+                entry = created;
+                entry.run();
+                trimTemplatesCache();
+            }
         }
-    }
-
-    private void setTemplates(HttpSession session, Templates templates)
-            throws ServletException, IOException {
-        String id = session.getId();
-        long cacheTime = (long) session.getMaxInactiveInterval() * 1000;
-        Log.log(Log.DEBUG, "Storing precompiled stylesheet.");
-        synchronized (templateMap) {
-            templateMap.put(id, new TemplateTracker(id, templates, cacheTime));
+        entry.lastUsed = templatesClock.incrementAndGet();
+        try {
+            return (Templates) entry.get();
+        } catch (ExecutionException ex) {
+            templatesCache.remove(key, entry);
+            Throwable cause = ex.getCause();
+            if (cause instanceof Exception) throw (Exception) cause;
+            throw ex;
         }
     }
 
-    private Templates getDefaultTemplates(Locale locale)
-            throws ServletException, IOException {
-        synchronized (defaultTemplates) {
-            Templates templates = (Templates) defaultTemplates.get(locale);
-            if (templates != null) return templates;
-            try {
-                Source source = getStylesheet(stylesheetLocation, true, locale);
-                templates = TransformerFactory.newInstance().newTemplates(
-                        source);
-                defaultTemplates.put(locale, templates);
-                return templates;
-            } catch (Exception ex) {
-                throw new ServletException(SmbDAVUtilities.getResource(
-                        DefaultGetHandler.class, "stylesheetError", null,
-                                null));
+    private void trimTemplatesCache() {
+        while (templatesCache.size() > templatesCacheSize) {
+            Map.Entry oldest = null;
+            Iterator entries = templatesCache.entrySet().iterator();
+            while (entries.hasNext()) {
+                Map.Entry entry = (Map.Entry) entries.next();
+                if (oldest == null || ((CachedTemplates) entry.getValue(
+                        )).lastUsed < ((CachedTemplates) oldest.getValue(
+                                )).lastUsed) {
+                    oldest = entry;
+                }
             }
+            if (oldest == null) return;
+            Log.log(Log.DEBUG, "Evicting compiled stylesheet: {0}",
+                    oldest.getKey());
+            templatesCache.remove(oldest.getKey(), oldest.getValue());
         }
     }
 
@@ -536,28 +1183,50 @@ public class DefaultGetHandler extends AbstractHandler {
         return new StreamSource(location);
     }
 
-    private class TemplateTracker extends TimerTask {
+    private static class CapturingOutputStream extends OutputStream {
 
-        private final Templates templates;
+        private final OutputStream target;
 
-        private final String id;
+        private final int limit;
 
-        public TemplateTracker(String id, Templates templates, long cacheTime) {
-            this.templates = templates;
-            this.id = id;
-            TIMER.schedule(this, cacheTime);
+        private ByteArrayOutputStream captured = new ByteArrayOutputStream();
+
+        public CapturingOutputStream(OutputStream target, int limit) {
+            this.target = target;
+            this.limit = limit;
+        }
+
+        public void write(int b) throws IOException {
+            write(new byte[] { (byte) b }, 0, 1);
         }
 
-        public void run() {
-            Log.log(Log.DEBUG, "Removing cached stylesheet for session {0}",
-                    id);
-            synchronized (templateMap) {
-                templateMap.remove(id);
+        public void write(byte[] b, int offset, int length)
+                throws IOException {
+            target.write(b, offset, length);
+            if (captured == null) return;
+            if (captured.size() + length > limit) {
+                captured = null;
+            } else {
+                captured.write(b, offset, length);
             }
         }
 
-        public Templates getTemplates() {
-            return templates;
+        public void flush() throws IOException {
+            target.flush();
+        }
+
+        public byte[] getCaptured() {
+            return (captured != null) ? captured.toByteArray() : null;
+        }
+
+    }
+
+    private static class CachedTemplates extends FutureTask {
+
+        private volatile long lastUsed;
+
+        public CachedTemplates(Callable compiler) {
+            super(compiler);
         }
 
     }
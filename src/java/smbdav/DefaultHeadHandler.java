@@ -39,7 +39,8 @@ public class DefaultHeadHandler extends AbstractHandler {
      *
      * Services requests which use the HTTP HEAD method.
      * This implementation returns basic information regarding the specified
-     * resource.
+     * resource.  For non-collection resources, the response advertises
+     * support for byte range requests ("<code>Accept-Ranges: bytes</code>").
      * <br>
      * If the specified file does not exist, a 404 (Not Found) error is
      * sent to the client.
@@ -83,7 +84,12 @@ public class DefaultHeadHandler extends AbstractHandler {
                 file.getName());
         response.setContentType((contentType != null) ? contentType :
                 "application/octet-stream");
-        response.setContentLength(file.isFile() ? (int) file.length() : 0);
+        if (file.isFile()) {
+            response.setHeader("Accept-Ranges", "bytes");
+            SmbDAVUtilities.setContentLength(response, file.length());
+        } else {
+            response.setContentLength(0);
+        }
         response.flushBuffer();
     }
 
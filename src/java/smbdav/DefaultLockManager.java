@@ -22,7 +22,6 @@ import java.io.IOException;
 
 import java.security.Principal;
 
-import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.Map;
@@ -30,6 +29,10 @@ import java.util.Set;
 import java.util.Timer;
 import java.util.TimerTask;
 
+import java.util.concurrent.ConcurrentHashMap;
+
+import java.util.concurrent.locks.ReentrantLock;
+
 import javax.servlet.http.HttpServletResponse;
 
 import jcifs.smb.SmbFile;
@@ -38,7 +41,13 @@ public class DefaultLockManager implements LockManager {
 
     protected static final Timer TIMER = new Timer(true);
 
-    protected final Map locks = new HashMap();
+    protected final Map locks = new ConcurrentHashMap();
+
+    /**
+     * Held while locks are created, refreshed or released, so that
+     * conflicting requests are serialized.  Lookups do not take it.
+     */
+    protected final ReentrantLock lockTable = new ReentrantLock();
 
     private long defaultTimeout = SmbDAVUtilities.INFINITE_TIMEOUT;
 
@@ -80,21 +89,17 @@ public class DefaultLockManager implements LockManager {
 
     public boolean isLocked(SmbFile resource, String lockToken)
             throws IOException {
-        BasicLock lock;
-        synchronized (locks) {
-            lock = (BasicLock) locks.get(lockToken);
-        }
+        BasicLock lock = (lockToken != null) ?
+                (BasicLock) locks.get(lockToken) : null;
         return coveredBy(resource, lock);
     }
 
     public Lock[] getActiveLocks(SmbFile resource) throws IOException {
         Set activeLocks = new HashSet();
-        synchronized (locks) {
-            Iterator lockIterator = locks.values().iterator();
-            while (lockIterator.hasNext()) {
-                BasicLock lock = (BasicLock) lockIterator.next();
-                if (coveredBy(resource, lock)) activeLocks.add(lock);
-            }
+        Iterator lockIterator = locks.values().iterator();
+        while (lockIterator.hasNext()) {
+            BasicLock lock = (BasicLock) lockIterator.next();
+            if (coveredBy(resource, lock)) activeLocks.add(lock);
         }
         return activeLocks.isEmpty() ? null :
                 (BasicLock[]) activeLocks.toArray(new BasicLock[0]);
@@ -109,7 +114,8 @@ public class DefaultLockManager implements LockManager {
             throws LockException, IOException {
         Log.log(Log.DEBUG, "Locking \"{0}\" for \"{1}\" -- {2}", new Object[] {
                 resource, principal, lockInfo });
-        synchronized (locks) {
+        lockTable.lock();
+        try {
             BasicLock[] activeLocks = (BasicLock[]) getActiveLocks(resource);
             if (activeLocks != null && activeLocks.length > 0) {
                 if (lockInfo.isExclusive()) {
@@ -134,6 +140,8 @@ public class DefaultLockManager implements LockManager {
             Log.log(Log.DEBUG, "Locked resource \"{0}\":\n{1}", new Object[] {
                     resource, lock });
             return lockToken;
+        } finally {
+            lockTable.unlock();
         }
     }
 
@@ -150,7 +158,8 @@ public class DefaultLockManager implements LockManager {
                     "Timeout {2}:\n{3}", new Object[] { resource, principal,
                             SmbDAVUtilities.formatTimeout(timeout), tokens });
         }
-        synchronized (locks) {
+        lockTable.lock();
+        try {
             BasicLock[] activeLocks = (BasicLock[]) getActiveLocks(resource);
             if (activeLocks == null || activeLocks.length == 0) {
                 Log.log(Log.DEBUG, "No active locks on \"{0}\"", resource);
@@ -181,6 +190,8 @@ public class DefaultLockManager implements LockManager {
             while (lockIterator.hasNext()) {
                 ((BasicLock) lockIterator.next()).refresh(timeout);
             }
+        } finally {
+            lockTable.unlock();
         }
     }
 
@@ -188,8 +199,10 @@ public class DefaultLockManager implements LockManager {
             throws LockException, IOException {
         Log.log(Log.DEBUG, "Unlocking \"{0}\" for \"{1}\" with token {2}",
                 new Object[] { resource, principal, lockToken });
-        synchronized (locks) {
-            BasicLock lock = (BasicLock) locks.get(lockToken);
+        lockTable.lock();
+        try {
+            BasicLock lock = (lockToken != null) ?
+                    (BasicLock) locks.get(lockToken) : null;
             if (!coveredBy(resource, lock)) {
                 Log.log(Log.DEBUG,
                         "Resource \"{0}\" is not covered by lock -- {1}",
@@ -200,6 +213,8 @@ public class DefaultLockManager implements LockManager {
             Log.log(Log.DEBUG, "Unlocking resource \"{0}\" -- {1}",
                     new Object[] { resource, lock });
             lock.unlock();
+        } finally {
+            lockTable.unlock();
         }
     }
 
@@ -302,9 +317,7 @@ public class DefaultLockManager implements LockManager {
                     task = null;
                 }
             }
-            synchronized (locks) {
-                locks.remove(getToken());
-            }
+            locks.remove(getToken());
             Log.log(Log.DEBUG, "Released lock on \"{0}\" -- {1}",
                     new Object[] { getResource(), this });
         }
@@ -53,6 +53,11 @@ public class DefaultMoveHandler extends AbstractHandler {
      * succeeds and the file is overwritten.  If the "Overwrite" header is
      * not provided, a 412 (Precondition Failed) error is sent to the client.
      * <br>
+     * If the source and destination are on the same share, the source is
+     * renamed, which takes the same time regardless of the size of the
+     * resource.  Otherwise (or if the server refuses the rename), the
+     * source is copied to the destination and then removed.
+     * <br>
      * If the destination was created, but the source could not be removed,
      * a 403 (Forbidden) error is sent to the client.
      *
@@ -114,6 +119,23 @@ public class DefaultMoveHandler extends AbstractHandler {
                 return;
             }
         }
+        if (isSameShare(file, destinationFile)) {
+            try {
+                file.renameTo(destinationFile);
+                Log.log(Log.DEBUG, "Renamed \"{0}\" to \"{1}\".",
+                        new Object[] { file, destinationFile });
+                response.setStatus(overwritten ?
+                        HttpServletResponse.SC_NO_CONTENT :
+                                HttpServletResponse.SC_CREATED);
+                response.flushBuffer();
+                return;
+            } catch (SmbAuthException ex) {
+                throw ex;
+            } catch (SmbException ex) {
+                Log.log(Log.DEBUG, "Unable to rename \"{0}\"; copying: {1}",
+                        new Object[] { file, ex });
+            }
+        }
         file.copyTo(destinationFile);
         try {
             file.delete();
@@ -129,4 +151,16 @@ public class DefaultMoveHandler extends AbstractHandler {
         }
     }
 
+    /**
+     * Determines whether the given resources are on the same share of the
+     * same server, so that one can be renamed to the other.
+     */
+    private boolean isSameShare(SmbFile file, SmbFile destination) {
+        String server = file.getServer();
+        String share = file.getShare();
+        return (server != null && share != null &&
+                server.equalsIgnoreCase(destination.getServer()) &&
+                        share.equalsIgnoreCase(destination.getShare()));
+    }
+
 }
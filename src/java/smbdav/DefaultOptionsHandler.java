@@ -58,7 +58,10 @@ public class DefaultOptionsHandler extends AbstractHandler {
         if (file.exists()) {
             allow.append("OPTIONS, HEAD, GET, DELETE, PROPFIND");
             allow.append(", PROPPATCH, COPY, MOVE");
-            if (file.isFile()) allow.append(", PUT");
+            if (file.isFile()) {
+                allow.append(", PUT, PATCH");
+                response.setHeader("Accept-Patch", "multipart/byteranges");
+            }
         } else {
             allow.append("OPTIONS, MKCOL, PUT, POST");
         }
@@ -0,0 +1,252 @@
+/* Davenport WebDAV SMB Gateway
+ * Copyright (C) 2004  Eric Glass
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+package smbdav;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+import javax.servlet.ServletConfig;
+import javax.servlet.ServletException;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import jcifs.smb.NtlmPasswordAuthentication;
+import jcifs.smb.SmbFile;
+import jcifs.smb.SmbRandomAccessFile;
+
+/**
+ * Default implementation of a handler for requests using the HTTP PATCH
+ * method.
+ *
+ * @author Eric Glass
+ */
+public class DefaultPatchHandler extends AbstractHandler {
+
+    private long maximumUploadSize;
+
+    private File tempDirectory;
+
+    /**
+     * Initializes the handler.  The "maximumUploadSize" parameter specifies
+     * the largest file which may result from a patch (the default is 0,
+     * which imposes no limit).
+     *
+     * @param config The servlet configuration.
+     * @throws ServletException If the handler could not be initialized.
+     */
+    public void init(ServletConfig config) throws ServletException {
+        super.init(config);
+        String maximumUploadSize =
+                config.getInitParameter("maximumUploadSize");
+        this.maximumUploadSize = (maximumUploadSize != null) ?
+                Long.parseLong(maximumUploadSize) : 0l;
+        File temp = (File) config.getServletContext().getAttribute(
+                "javax.servlet.context.tempdir");
+        tempDirectory = (temp != null) ? temp :
+                new File(System.getProperty("java.io.tmpdir"));
+    }
+
+    /**
+     * Services requests which use the HTTP PATCH method.
+     * This implementation applies a "<code>multipart/byteranges</code>"
+     * patch to the specified file in place.  The patch is first received
+     * into a local temporary file and validated in full, so the file is
+     * only touched once the whole patch is known to be acceptable.  Each
+     * part of the patch is
+     * written at the offset given by its "<code>Content-Range</code>"
+     * header; if a part gives the complete length (as in
+     * "<code>bytes 0-99/4096</code>" or "<code>bytes *&#47;4096</code>"),
+     * the file is truncated or extended to that length once all parts
+     * have been written.  On success, a 204 (No Content) response is sent,
+     * carrying the new ETag of the file.
+     * <br>
+     * If the specified file does not exist, a 404 (Not Found) error is
+     * sent to the client.  If it is a collection, a 405 (Method Not
+     * Allowed) error is sent.
+     * <br>
+     * The request must carry an "<code>If-Match</code>" header giving the
+     * ETag of the content being patched; otherwise, a 428 (Precondition
+     * Required) error is sent to the client.  If the ETag does not match,
+     * a 412 (Precondition Failed) error is sent.
+     * <br>
+     * If the request content is not "<code>multipart/byteranges</code>", a
+     * 415 (Unsupported Media Type) error is sent to the client.  If the
+     * patch is malformed, a 400 (Bad Request) error is sent.  If the
+     * patched file (or the content of the patch) would exceed the
+     * configured maximum upload size, a 413 (Request Entity Too Large)
+     * error is sent.  In each case, no part of the patch is applied.
+     *
+     * @param request The request being serviced.
+     * @param response The servlet response.
+     * @param auth The user's authentication information.
+     * @throws ServletException If an application error occurs.
+     * @throws IOException If an IO error occurs while handling the request.
+     */
+    public void service(HttpServletRequest request,
+            HttpServletResponse response, NtlmPasswordAuthentication auth)
+                    throws ServletException, IOException {
+        SmbFile file = getSmbFile(request, auth);
+        if (!file.exists()) {
+            response.sendError(HttpServletResponse.SC_NOT_FOUND);
+            return;
+        }
+        if (!file.isFile()) {
+            response.sendError(HttpServletResponse.SC_METHOD_NOT_ALLOWED,
+                    SmbDAVUtilities.getResource(DefaultPatchHandler.class,
+                            "collectionTarget", null, request.getLocale()));
+            return;
+        }
+        if (request.getHeader("If-Match") == null) {
+            response.sendError(SC_PRECONDITION_REQUIRED);
+            return;
+        }
+        String boundary = ByteRangesInputStream.getBoundary(
+                request.getContentType());
+        if (boundary == null) {
+            response.sendError(
+                    HttpServletResponse.SC_UNSUPPORTED_MEDIA_TYPE);
+            return;
+        }
+        int result = checkLockOwnership(request, file);
+        if (result != HttpServletResponse.SC_OK) {
+            response.sendError(result);
+            return;
+        }
+        result = checkConditionalRequest(request, file);
+        if (result != HttpServletResponse.SC_OK) {
+            response.sendError(result);
+            return;
+        }
+        LockManager lockManager = getLockManager();
+        if (lockManager != null) {
+            file = lockManager.getLockedResource(file, auth);
+        }
+        // refuse a patch the user may not apply before receiving it.
+        new SmbRandomAccessFile(file, "rw").close();
+        ByteRangesInputStream input = new ByteRangesInputStream(
+                request.getInputStream(), boundary);
+        File data = File.createTempFile("davenport-", ".patch",
+                tempDirectory);
+        List ranges = new ArrayList();
+        long length = -1;
+        try {
+            OutputStream output = new FileOutputStream(data);
+            BufferPool bufferPool = getBufferPool();
+            byte[] buf = bufferPool.borrow(8192);
+            try {
+                long received = 0;
+                long[] range;
+                while ((range = input.getNextRange()) != null) {
+                    if (range[2] != -1) {
+                        if (length != -1 && length != range[2]) {
+                            Log.log(Log.INFORMATION, "Invalid patch for " +
+                                    "\"{0}\": inconsistent length.", file);
+                            response.sendError(
+                                    HttpServletResponse.SC_BAD_REQUEST);
+                            return;
+                        }
+                        length = range[2];
+                    }
+                    if (range[0] != -1) received += range[1] - range[0] + 1;
+                    if (maximumUploadSize > 0 &&
+                            (length > maximumUploadSize ||
+                                    range[1] >= maximumUploadSize ||
+                                            received > maximumUploadSize)) {
+                        response.sendError(HttpServletResponse.
+                                SC_REQUEST_ENTITY_TOO_LARGE);
+                        return;
+                    }
+                    if (range[0] == -1) continue;
+                    // the part's content ends with its range.
+                    int count;
+                    while ((count = input.read(buf)) != -1) {
+                        output.write(buf, 0, count);
+                    }
+                    ranges.add(range);
+                }
+            } catch (IOException ex) {
+                // anything else is a failure to read the request.
+                if (!input.isMalformed()) throw ex;
+                Log.log(Log.INFORMATION, "Invalid patch for \"{0}\": {1}",
+                        new Object[] { file, ex });
+                response.sendError(HttpServletResponse.SC_BAD_REQUEST);
+                return;
+            } finally {
+                bufferPool.release(buf);
+                output.close();
+            }
+            apply(file, data, ranges, length);
+        } finally {
+            if (!data.delete()) {
+                Log.log(Log.WARNING, "Unable to delete \"{0}\".", data);
+            }
+        }
+        Log.log(Log.DEBUG, "Applied {0} ranges to \"{1}\".",
+                new Object[] { new Integer(ranges.size()), file });
+        // attributes cached by the handle may predate the write.
+        String etag = SmbDAVUtilities.getETag(getSmbFile(request, auth));
+        if (etag != null) response.setHeader("ETag", etag);
+        response.setStatus(HttpServletResponse.SC_NO_CONTENT);
+        response.flushBuffer();
+    }
+
+    /**
+     * Writes each received part to the file at its range, then truncates
+     * or extends the file to the given length (if not -1).
+     */
+    private void apply(SmbFile file, File data, List ranges, long length)
+            throws IOException {
+        InputStream input = new FileInputStream(data);
+        SmbRandomAccessFile handle = null;
+        BufferPool bufferPool = getBufferPool();
+        byte[] buf = bufferPool.borrow(8192);
+        try {
+            handle = new SmbRandomAccessFile(file, "rw");
+            Iterator iterator = ranges.iterator();
+            while (iterator.hasNext()) {
+                long[] range = (long[]) iterator.next();
+                handle.seek(range[0]);
+                long remaining = range[1] - range[0] + 1;
+                while (remaining > 0) {
+                    int count = input.read(buf, 0,
+                            (int) Math.min(buf.length, remaining));
+                    if (count == -1) throw new EOFException();
+                    handle.write(buf, 0, count);
+                    remaining -= count;
+                }
+            }
+            if (length != -1) handle.setLength(length);
+        } finally {
+            bufferPool.release(buf);
+            if (handle != null) handle.close();
+            input.close();
+        }
+    }
+
+}
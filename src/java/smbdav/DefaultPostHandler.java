@@ -18,14 +18,38 @@
 
 package smbdav;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.io.SequenceInputStream;
 
+import java.util.HashSet;
+import java.util.Set;
+import java.util.StringTokenizer;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+
+import java.util.zip.GZIPInputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+import javax.servlet.ServletConfig;
 import javax.servlet.ServletException;
 
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
 import jcifs.smb.NtlmPasswordAuthentication;
+import jcifs.smb.SmbException;
+import jcifs.smb.SmbFile;
+import jcifs.smb.SmbFileFilter;
+import jcifs.smb.SmbFileOutputStream;
 
 /**
  * Default implementation of a handler for requests using the HTTP POST
@@ -35,10 +59,56 @@ import jcifs.smb.NtlmPasswordAuthentication;
  */
 public class DefaultPostHandler extends AbstractHandler {
 
+    private static final int ZIP = 0;
+
+    private static final int TAR = 1;
+
+    private static final int TAR_GZIP = 2;
+
+    private int writers;
+
+    private int maximumBufferedSize;
+
+    /**
+     * Initializes the handler.  The "bulkImport.writers" parameter
+     * specifies the maximum number of files from a single archive which
+     * are written concurrently (the default is 8).  The
+     * "bulkImport.maximumBufferedSize" parameter specifies the size of the
+     * largest file which is buffered in memory so that it can be written
+     * in the background (the default is 1048576).
+     *
+     * @param config The servlet configuration.
+     * @throws ServletException If the handler could not be initialized.
+     */
+    public void init(ServletConfig config) throws ServletException {
+        super.init(config);
+        String writers = config.getInitParameter("bulkImport.writers");
+        this.writers = (writers != null) ? Integer.parseInt(writers) : 8;
+        String maximumBufferedSize =
+                config.getInitParameter("bulkImport.maximumBufferedSize");
+        this.maximumBufferedSize = (maximumBufferedSize != null) ?
+                Integer.parseInt(maximumBufferedSize) : 1048576;
+    }
+
     /**
      * Services requests which use the HTTP POST method.
-     * This may, at some point, implement some sort of useful behavior.
-     * Right now it doesn't do anything.
+     * This implementation unpacks an uploaded archive into the requested
+     * collection.  The archive format is taken from the
+     * <code>import</code> query parameter ("zip", "tar" or "tgz") or,
+     * failing that, from the request's content type; requests which
+     * carry no archive are ignored.
+     * <br>
+     * Directories are created as they are encountered, and files are
+     * written by a bounded number of concurrent writers.  Existing files
+     * are replaced.  The result for each entry is reported in a 207
+     * (Multi-Status) response.
+     * <br>
+     * If the <code>import</code> parameter names an unsupported format,
+     * a 415 (Unsupported Media Type) error is sent to the client.
+     * <br>
+     * If the requested collection does not exist, a 404 (Not Found) error
+     * is sent to the client; if the requested resource is not a
+     * collection, a 405 (Method Not Allowed) error is sent.
      *
      * @param request The request being serviced.
      * @param response The servlet response.
@@ -48,6 +118,439 @@ public class DefaultPostHandler extends AbstractHandler {
      */
     public void service(HttpServletRequest request,
             HttpServletResponse response, NtlmPasswordAuthentication auth)
-                    throws ServletException, IOException { }
+                    throws ServletException, IOException {
+        int format = getFormat(request);
+        if (format == -1) {
+            response.sendError(HttpServletResponse.SC_UNSUPPORTED_MEDIA_TYPE);
+            return;
+        }
+        if (format == -2) return;
+        SmbFile file = getSmbFile(request, auth);
+        if (!file.exists()) {
+            response.sendError(HttpServletResponse.SC_NOT_FOUND);
+            return;
+        }
+        if (file.isFile()) {
+            response.sendError(HttpServletResponse.SC_METHOD_NOT_ALLOWED);
+            return;
+        }
+        int result = checkLockOwnership(request, file);
+        if (result != HttpServletResponse.SC_OK) {
+            response.sendError(result);
+            return;
+        }
+        result = checkConditionalRequest(request, file);
+        if (result != HttpServletResponse.SC_OK) {
+            response.sendError(result);
+            return;
+        }
+        String href = getRequestURL(request);
+        if (!href.endsWith("/")) href += "/";
+        Import bulkImport = new Import(request, file, href, auth);
+        InputStream input = request.getInputStream();
+        try {
+            if (format == TAR_GZIP) input = new GZIPInputStream(input);
+            if (format == ZIP) {
+                ZipInputStream zip = new ZipInputStream(input);
+                ZipEntry entry;
+                while ((entry = zip.getNextEntry()) != null) {
+                    bulkImport.add(entry.getName(), entry.isDirectory(),
+                            entry.getSize(), entry.getTime(), zip);
+                }
+            } else {
+                TarInputStream tar = new TarInputStream(input);
+                TarInputStream.Entry entry;
+                while ((entry = tar.getNextEntry()) != null) {
+                    if (entry.getType() == TarInputStream.Entry.OTHER) {
+                        Log.log(Log.DEBUG, "Skipping tar entry \"{0}\".",
+                                entry.getName());
+                        continue;
+                    }
+                    bulkImport.add(entry.getName(), entry.getType() ==
+                            TarInputStream.Entry.DIRECTORY, entry.getSize(),
+                                    entry.getModified(), tar);
+                }
+            }
+        } catch (InterruptedIOException ex) {
+            throw ex;
+        } catch (IOException ex) {
+            Log.log(Log.INFORMATION, "Unable to read archive: {0}", ex);
+            bulkImport.finish();
+            bulkImport.multiStatus.add(href,
+                    HttpServletResponse.SC_BAD_REQUEST);
+            bulkImport.multiStatus.send(response);
+            return;
+        }
+        bulkImport.finish();
+        Log.log(Log.DEBUG, "Imported {0} entries into \"{1}\".",
+                new Object[] { new Integer(bulkImport.multiStatus.size()),
+                        file });
+        bulkImport.multiStatus.send(response);
+    }
+
+    /**
+     * Determines the format of the uploaded archive.
+     *
+     * @return The archive format, -1 if an unsupported format was
+     * requested, or -2 if the request does not carry an archive.
+     */
+    private int getFormat(HttpServletRequest request) {
+        String format = request.getParameter("import");
+        if (format != null) {
+            format = format.toLowerCase();
+            if ("zip".equals(format)) return ZIP;
+            if ("tar".equals(format)) return TAR;
+            if ("tgz".equals(format) || "tar.gz".equals(format)) {
+                return TAR_GZIP;
+            }
+            return -1;
+        }
+        String contentType = request.getContentType();
+        if (contentType == null) return -2;
+        int index = contentType.indexOf(';');
+        if (index != -1) contentType = contentType.substring(0, index);
+        contentType = contentType.trim().toLowerCase();
+        if (contentType.equals("application/zip") ||
+                contentType.equals("application/x-zip") ||
+                        contentType.equals("application/x-zip-compressed")) {
+            return ZIP;
+        }
+        if (contentType.equals("application/x-tar")) return TAR;
+        if (contentType.equals("application/x-gtar") ||
+                contentType.equals("application/x-gzip") ||
+                        contentType.equals("application/gzip")) {
+            return TAR_GZIP;
+        }
+        return -2;
+    }
+
+    /**
+     * The state of a single archive import.  Entries are read on the
+     * request thread; directories are created immediately, while files
+     * small enough to be buffered are handed to the transfer executor.
+     * A semaphore bounds the number of files being written (and therefore
+     * the memory held by buffered content).
+     */
+    private class Import {
+
+        private final HttpServletRequest request;
+
+        private final SmbFile collection;
+
+        private final String href;
+
+        private final NtlmPasswordAuthentication auth;
+
+        private final ExecutorService executor;
+
+        private final Semaphore permits;
+
+        private final Set directories = new HashSet();
+
+        private final Set failed = new HashSet();
+
+        private final MultiStatus multiStatus = new MultiStatus();
+
+        public Import(HttpServletRequest request, SmbFile collection,
+                String href, NtlmPasswordAuthentication auth) {
+            this.request = request;
+            this.collection = collection;
+            this.href = href;
+            this.auth = auth;
+            this.executor = (writers > 1) ? getExecutor() : null;
+            this.permits = new Semaphore(Math.max(writers, 1));
+        }
+
+        public void add(String name, boolean directory, long size,
+                long modified, InputStream input) throws IOException {
+            String path = normalize(name);
+            if (path == null) {
+                multiStatus.add(href + escapePath(name.replace('\\', '/')),
+                        HttpServletResponse.SC_BAD_REQUEST);
+                return;
+            }
+            if (path.length() == 0) return;
+            int index = path.lastIndexOf('/');
+            String parent = (index != -1) ? path.substring(0, index + 1) : "";
+            if (!createDirectories(parent)) {
+                multiStatus.add(href + escapePath(path),
+                        SC_FAILED_DEPENDENCY);
+                return;
+            }
+            if (directory) {
+                createDirectory(path + "/");
+                return;
+            }
+            String location = href + escapePath(path);
+            SmbFile file;
+            try {
+                file = resolve(path);
+                if (file == null) {
+                    multiStatus.add(location,
+                            HttpServletResponse.SC_FORBIDDEN);
+                    return;
+                }
+                int result = checkLockOwnership(request, file);
+                if (result != HttpServletResponse.SC_OK) {
+                    multiStatus.add(location, result);
+                    return;
+                }
+                LockManager lockManager = getLockManager();
+                if (lockManager != null) {
+                    file = lockManager.getLockedResource(file, auth);
+                }
+            } catch (IOException ex) {
+                multiStatus.add(location, ex);
+                return;
+            }
+            if (executor == null || size > maximumBufferedSize) {
+                write(location, file, modified, input);
+                return;
+            }
+            byte[] content;
+            if (size >= 0) {
+                content = new byte[(int) size];
+                int offset = 0;
+                while (offset < content.length) {
+                    int count = input.read(content, offset,
+                            content.length - offset);
+                    if (count == -1) throw new EOFException();
+                    offset += count;
+                }
+            } else {
+                // the size isn't known up front (streamed zip entries);
+                // buffer up to the limit, then fall back to streaming.
+                ByteArrayOutputStream collector = new ByteArrayOutputStream();
+                byte[] buf = new byte[8192];
+                int count;
+                while ((count = input.read(buf)) != -1) {
+                    collector.write(buf, 0, count);
+                    if (collector.size() > maximumBufferedSize) {
+                        write(location, file, modified,
+                                new SequenceInputStream(
+                                        new ByteArrayInputStream(
+                                                collector.toByteArray()),
+                                                        input));
+                        return;
+                    }
+                }
+                content = collector.toByteArray();
+            }
+            Writer writer = new Writer(location, file, modified, content);
+            acquire();
+            try {
+                executor.execute(writer);
+            } catch (RejectedExecutionException ex) {
+                permits.release();
+                writer.run();
+            }
+        }
+
+        /**
+         * Waits for all outstanding writes to complete.
+         */
+        public void finish() throws IOException {
+            int count = Math.max(writers, 1);
+            try {
+                permits.acquire(count);
+            } catch (InterruptedException ex) {
+                throw new InterruptedIOException();
+            }
+            permits.release(count);
+        }
+
+        private void acquire() throws IOException {
+            try {
+                permits.acquire();
+            } catch (InterruptedException ex) {
+                throw new InterruptedIOException();
+            }
+        }
+
+        /**
+         * Writes an entry's content directly from the archive stream on
+         * the request thread.
+         */
+        private void write(String location, SmbFile file, long modified,
+                InputStream input) throws IOException {
+            BufferPool bufferPool = getBufferPool();
+            byte[] buf = bufferPool.borrow(8192);
+            OutputStream output = null;
+            try {
+                output = new SmbFileOutputStream(file);
+                int count;
+                // read errors are in the archive itself, and abort the
+                // import; SMB errors only fail this entry.
+                while ((count = input.read(buf)) != -1) {
+                    output.write(buf, 0, count);
+                }
+                output.close();
+                output = null;
+                setModified(file, modified);
+                multiStatus.add(location, HttpServletResponse.SC_CREATED);
+            } catch (SmbException ex) {
+                multiStatus.add(location, ex);
+            } finally {
+                bufferPool.release(buf);
+                if (output != null) {
+                    try {
+                        output.close();
+                    } catch (IOException ignore) { }
+                }
+            }
+        }
+
+        private boolean createDirectories(String parent) throws IOException {
+            if (parent.length() == 0) return true;
+            int index = 0;
+            while ((index = parent.indexOf('/', index) + 1) > 0) {
+                String directory = parent.substring(0, index);
+                if (failed.contains(directory)) return false;
+                if (!directories.contains(directory) &&
+                        !createDirectory(directory)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private boolean createDirectory(String path) throws IOException {
+            if (directories.contains(path)) return true;
+            if (failed.contains(path)) return false;
+            String location = href + escapePath(path);
+            try {
+                SmbFile directory = resolve(path);
+                if (directory == null) {
+                    failed.add(path);
+                    multiStatus.add(location,
+                            HttpServletResponse.SC_FORBIDDEN);
+                    return false;
+                }
+                if (directory.exists()) {
+                    if (directory.isFile()) {
+                        failed.add(path);
+                        multiStatus.add(location,
+                                HttpServletResponse.SC_CONFLICT);
+                        return false;
+                    }
+                } else {
+                    int result = checkLockOwnership(request, directory);
+                    if (result != HttpServletResponse.SC_OK) {
+                        failed.add(path);
+                        multiStatus.add(location, result);
+                        return false;
+                    }
+                    directory.mkdir();
+                    multiStatus.add(location, HttpServletResponse.SC_CREATED);
+                }
+                directories.add(path);
+                return true;
+            } catch (IOException ex) {
+                failed.add(path);
+                multiStatus.add(location, ex);
+                return false;
+            }
+        }
+
+        /**
+         * Resolves a path against the target collection.
+         *
+         * @return The resource, or <code>null</code> if access to it is
+         * blocked by the resource filter.
+         */
+        private SmbFile resolve(String path) throws IOException {
+            SmbFile file = new SmbFile(collection, path);
+            SmbFileFilter filter = getFilter();
+            if (filter != null && !filter.accept(file)) {
+                Log.log(Log.INFORMATION, "Filter blocked access to \"{0}\".",
+                        file);
+                return null;
+            }
+            return file;
+        }
+
+        private void setModified(SmbFile file, long modified) {
+            if (modified <= 0) return;
+            try {
+                file.setLastModified(modified);
+            } catch (IOException ex) {
+                Log.log(Log.DEBUG, "Unable to set modification time: {0}", ex);
+            }
+        }
+
+        private class Writer implements Runnable {
+
+            private final String location;
+
+            private final SmbFile file;
+
+            private final long modified;
+
+            private final byte[] content;
+
+            public Writer(String location, SmbFile file, long modified,
+                    byte[] content) {
+                this.location = location;
+                this.file = file;
+                this.modified = modified;
+                this.content = content;
+            }
+
+            public void run() {
+                try {
+                    OutputStream output = new SmbFileOutputStream(file);
+                    try {
+                        output.write(content);
+                    } finally {
+                        output.close();
+                    }
+                    setModified(file, modified);
+                    multiStatus.add(location, HttpServletResponse.SC_CREATED);
+                } catch (Throwable throwable) {
+                    multiStatus.add(location, throwable);
+                } finally {
+                    permits.release();
+                }
+            }
+
+        }
+
+    }
+
+    /**
+     * Normalizes the path of an archive entry relative to the target
+     * collection.
+     *
+     * @return The normalized path (without a trailing slash), or
+     * <code>null</code> if the path would escape the collection.
+     */
+    private static String normalize(String name) {
+        if (name.indexOf('\\') != -1) return null;
+        StringBuffer path = new StringBuffer();
+        StringTokenizer tokenizer = new StringTokenizer(name, "/");
+        while (tokenizer.hasMoreTokens()) {
+            String segment = tokenizer.nextToken();
+            if (segment.equals(".")) continue;
+            if (segment.equals("..") || segment.indexOf(':') != -1) {
+                return null;
+            }
+            if (path.length() > 0) path.append('/');
+            path.append(segment);
+        }
+        return path.toString();
+    }
+
+    private static String escapePath(String path) throws IOException {
+        StringBuffer buffer = new StringBuffer();
+        int start = 0;
+        int index;
+        while ((index = path.indexOf('/', start)) != -1) {
+            buffer.append(PropertiesDirector.escape(path.substring(start,
+                    index))).append('/');
+            start = index + 1;
+        }
+        buffer.append(PropertiesDirector.escape(path.substring(start)));
+        return buffer.toString();
+    }
 
 }
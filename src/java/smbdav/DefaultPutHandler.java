@@ -18,10 +18,21 @@
 
 package smbdav;
 
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.InputStream;
 import java.io.IOException;
 import java.io.OutputStream;
 
+import java.security.MessageDigest;
+
+import java.util.Arrays;
+
+import java.util.concurrent.ExecutorService;
+
+import javax.servlet.ServletConfig;
 import javax.servlet.ServletException;
 
 import javax.servlet.http.HttpServletRequest;
@@ -30,6 +41,7 @@ import javax.servlet.http.HttpServletResponse;
 import jcifs.smb.NtlmPasswordAuthentication;
 import jcifs.smb.SmbFile;
 import jcifs.smb.SmbFileOutputStream;
+import jcifs.smb.SmbRandomAccessFile;
 
 /**
  * Default implementation of a handler for requests using the HTTP PUT
@@ -39,18 +51,238 @@ import jcifs.smb.SmbFileOutputStream;
  */
 public class DefaultPutHandler extends AbstractHandler {
 
+    private int pipelineDepth;
+
+    private int pipelineChunkSize;
+
+    private long parallelThreshold;
+
+    private int parallelHandles;
+
+    private long maximumUploadSize;
+
+    private PartialUploads partialUploads;
+
+    private UploadSpool spool;
+
+    private boolean writeBehind;
+
+    private long deltaThreshold;
+
+    private int deltaBlockSize;
+
+    private BlockHashStore hashStore;
+
+    private File deltaDirectory;
+
+    /**
+     * Initializes the handler.  The "putPipeline.depth" parameter
+     * specifies the number of received chunks which may be queued for
+     * writing to the server (the default is 4; 0 writes each read
+     * directly).  The "putPipeline.chunkSize" parameter specifies the size
+     * of each chunk (the default is 65536).
+     * <br>
+     * Uploads of at least "putParallel.threshold" bytes (the default is 0,
+     * which disables parallel uploads) are written through
+     * "putParallel.handles" file handles at once (the default is 4).
+     * <br>
+     * The "maximumUploadSize" parameter specifies the largest content
+     * accepted (the default is 0, which imposes no limit).
+     * <br>
+     * Resumable uploads are enabled unless "resumableUploads.enabled" is
+     * "false"; abandoned uploads are removed after
+     * "resumableUploads.expiry" milliseconds (the default is 86400000).
+     * <br>
+     * The "putSpool.mode" parameter specifies whether content is spooled
+     * to local disk before being written to the server: "none" (the
+     * default), "burst" or "writeBehind".  Spooled content is held in
+     * "putSpool.directory" (by default, a subdirectory of the servlet
+     * context's temporary directory), up to "putSpool.capacity" bytes at
+     * once (the default is 1073741824).  In write-behind mode,
+     * "putSpool.writers" threads (the default is 2) write to the server,
+     * retrying a failed write up to "putSpool.retries" times (the default
+     * is 5) at intervals of "putSpool.retryInterval" milliseconds (the
+     * default is 60000).
+     * <br>
+     * Overwrites of files of at least "putDelta.threshold" bytes (the
+     * default is 0, which disables delta writes) only write the blocks
+     * of "putDelta.blockSize" bytes (the default is 65536) which have
+     * changed.  Block hashes of existing files are kept in
+     * "putDelta.hashStore" (by default, a subdirectory of the servlet
+     * context's temporary directory).
+     *
+     * @param config The servlet configuration.
+     * @throws ServletException If the handler could not be initialized.
+     */
+    public void init(ServletConfig config) throws ServletException {
+        super.init(config);
+        String pipelineDepth = config.getInitParameter("putPipeline.depth");
+        this.pipelineDepth = (pipelineDepth != null) ?
+                Integer.parseInt(pipelineDepth) : 4;
+        String pipelineChunkSize =
+                config.getInitParameter("putPipeline.chunkSize");
+        this.pipelineChunkSize = (pipelineChunkSize != null) ?
+                Integer.parseInt(pipelineChunkSize) : 65536;
+        String parallelThreshold =
+                config.getInitParameter("putParallel.threshold");
+        this.parallelThreshold = (parallelThreshold != null) ?
+                Long.parseLong(parallelThreshold) : 0l;
+        String parallelHandles =
+                config.getInitParameter("putParallel.handles");
+        this.parallelHandles = (parallelHandles != null) ?
+                Integer.parseInt(parallelHandles) : 4;
+        String maximumUploadSize =
+                config.getInitParameter("maximumUploadSize");
+        this.maximumUploadSize = (maximumUploadSize != null) ?
+                Long.parseLong(maximumUploadSize) : 0l;
+        String resumable = config.getInitParameter("resumableUploads.enabled");
+        if (resumable == null || Boolean.valueOf(resumable).booleanValue()) {
+            String expiry = config.getInitParameter("resumableUploads.expiry");
+            partialUploads = new PartialUploads((expiry != null) ?
+                    Long.parseLong(expiry) : 86400000l);
+        }
+        initSpool(config);
+        initDelta(config);
+    }
+
+    private void initDelta(ServletConfig config) throws ServletException {
+        String threshold = config.getInitParameter("putDelta.threshold");
+        deltaThreshold = (threshold != null) ? Long.parseLong(threshold) : 0l;
+        if (deltaThreshold <= 0) return;
+        String blockSize = config.getInitParameter("putDelta.blockSize");
+        deltaBlockSize = Math.min((blockSize != null) ?
+                Integer.parseInt(blockSize) : 65536,
+                        getBufferPool().getMaximumBufferSize());
+        deltaDirectory = getTempDirectory(config);
+        String directory = config.getInitParameter("putDelta.hashStore");
+        try {
+            hashStore = new BlockHashStore((directory != null) ?
+                    new File(directory) : new File(getTempDirectory(config),
+                            "davenport-hashes"));
+        } catch (IOException ex) {
+            throw new ServletException(ex);
+        }
+        Log.log(Log.DEBUG, "Delta writes enabled for files over {0} bytes.",
+                new Long(deltaThreshold));
+    }
+
+    private File getTempDirectory(ServletConfig config) {
+        File temp = (File) config.getServletContext().getAttribute(
+                "javax.servlet.context.tempdir");
+        return (temp != null) ? temp :
+                new File(System.getProperty("java.io.tmpdir"));
+    }
+
+    private void initSpool(ServletConfig config) throws ServletException {
+        String mode = config.getInitParameter("putSpool.mode");
+        if (mode == null || mode.equalsIgnoreCase("none")) return;
+        if (mode.equalsIgnoreCase("writeBehind")) {
+            writeBehind = true;
+        } else if (!mode.equalsIgnoreCase("burst")) {
+            throw new ServletException("Invalid putSpool.mode: " + mode);
+        }
+        String directory = config.getInitParameter("putSpool.directory");
+        File spoolDirectory;
+        if (directory != null) {
+            spoolDirectory = new File(directory);
+        } else {
+            spoolDirectory = new File(getTempDirectory(config),
+                    "davenport-spool");
+        }
+        String capacity = config.getInitParameter("putSpool.capacity");
+        long spoolCapacity = (capacity != null) ?
+                Long.parseLong(capacity) : 1073741824l;
+        String writers = config.getInitParameter("putSpool.writers");
+        int spoolWriters = (writers != null) ? Integer.parseInt(writers) : 2;
+        String retries = config.getInitParameter("putSpool.retries");
+        int spoolRetries = (retries != null) ? Integer.parseInt(retries) : 5;
+        String retryInterval =
+                config.getInitParameter("putSpool.retryInterval");
+        long spoolRetryInterval = (retryInterval != null) ?
+                Long.parseLong(retryInterval) : 60000l;
+        try {
+            spool = new UploadSpool(spoolDirectory, spoolCapacity,
+                    spoolWriters, spoolRetries, spoolRetryInterval,
+                            getBufferPool());
+        } catch (IOException ex) {
+            throw new ServletException(ex);
+        }
+        Log.log(Log.DEBUG, "Spooling uploads ({0}) in \"{1}\".",
+                new Object[] { mode, spoolDirectory });
+    }
+
+    public void destroy() {
+        if (partialUploads != null) {
+            partialUploads.destroy();
+            partialUploads = null;
+        }
+        if (spool != null) {
+            Log.log(Log.DEBUG, "Upload spool statistics: {0}", spool);
+            spool.destroy();
+            spool = null;
+        }
+        if (hashStore != null) {
+            Log.log(Log.DEBUG, "Block hash store statistics: {0}", hashStore);
+            hashStore = null;
+        }
+        super.destroy();
+    }
+
     /**
      * Services requests which use the HTTP PUT method.
      * This implementation uploads the content to the specified location.
      * <br>
-     * If the content length is not specified, a 411 (Length Required) error
-     * is sent to the client.
+     * If the content length is not specified and the content is not sent
+     * using chunked transfer-coding, a 411 (Length Required) error is sent
+     * to the client.
+     * <br>
+     * If the content is larger than the configured maximum upload size, a
+     * 413 (Request Entity Too Large) error is sent to the client.  Chunked
+     * content is received into a temporary file alongside the target, and
+     * is checked as it is received; if it exceeds the limit, the temporary
+     * file is removed and the target is untouched.
+     * <br>
+     * If the request carries a "<code>Content-Range</code>" header (and
+     * resumable uploads are enabled), the content is written at the given
+     * offset of a hidden partial file alongside the target.  Until the
+     * full length has been received, a 202 (Accepted) response is sent,
+     * with a "<code>Range</code>" header indicating the content committed
+     * so far; the partial file then replaces the target.  A range of
+     * "<code>bytes *&#47;</code><i>length</i>" queries the committed
+     * content without sending any.  The partial file belongs to a single
+     * upload, identified by the total length, the entity tag of the target
+     * and the user; a request differing in any of these sees no committed
+     * content.  If the range starts beyond the committed content, a 409
+     * (Conflict) error is sent to the client.
      * <br>
      * If the resource exists and is a collection, a 405 (Method Not Allowed)
      * error is sent to the client.
      * <br>
      * If the parent collection does not exist, a 409 (Conflict) error is
      * sent to the client.
+     * <br>
+     * All of the above checks, along with lock and precondition checks and
+     * opening the file for writing with the user's credentials, are
+     * performed before the content is read, whichever way it is then
+     * received.  A client sending "<code>Expect: 100-continue</code>" is
+     * therefore refused before it transmits the content.  Content of known
+     * length is also checked against the free space on the share; if it
+     * will not fit, a 507 (Insufficient Storage) error is sent to the
+     * client.
+     * <br>
+     * If spooling is enabled and the content length is known, the content
+     * is first received into a local spool file (if it fits in the
+     * spool).  In burst mode, the spooled content is then written to a
+     * temporary file which replaces the target; in write-behind mode, the
+     * upload is acknowledged once the content has been synced to local
+     * disk, and is written to the server in the background.  Resources
+     * which are locked are not spooled.
+     * <br>
+     * If delta writes are enabled and the content overwrites a file of at
+     * least the configured size, the content is received locally and then
+     * compared block by block against the existing file (using recorded
+     * block hashes where available), and only the blocks which differ are
+     * written.  This takes precedence over spooling and parallel uploads.
      *
      * @param request The request being serviced.
      * @param response The servlet response.
@@ -61,11 +293,18 @@ public class DefaultPutHandler extends AbstractHandler {
     public void service(HttpServletRequest request,
             HttpServletResponse response, NtlmPasswordAuthentication auth)
                     throws ServletException, IOException {
-        int length = request.getContentLength();
-        if (length < 0) {
+        long length = SmbDAVUtilities.getContentLength(request);
+        if (length < 0 && !isChunked(request)) {
             response.sendError(HttpServletResponse.SC_LENGTH_REQUIRED);
             return;
         }
+        if (maximumUploadSize > 0 && length > maximumUploadSize) {
+            response.sendError(
+                    HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE);
+            return;
+        }
+        // content of unknown length is metered as it is received.
+        boolean limited = (length < 0 && maximumUploadSize > 0);
         SmbFile file = getSmbFile(request, auth);
         boolean existsCurrently = file.exists();
         if (existsCurrently && !file.isFile()) {
@@ -90,24 +329,532 @@ public class DefaultPutHandler extends AbstractHandler {
             response.flushBuffer();
             return;
         }
+        if (length > 0 && request.getHeader("Content-Range") == null) {
+            long available = getAvailableSpace(parent);
+            if (existsCurrently && available != Long.MAX_VALUE) {
+                available += file.length();
+            }
+            if (available < length) {
+                Log.log(Log.INFORMATION,
+                        "Rejecting {0} byte upload to \"{1}\"; {2} available.",
+                                new Object[] { new Long(length), file,
+                                        new Long(available) });
+                response.sendError(SC_INSUFFICIENT_STORAGE);
+                return;
+            }
+        }
+        SmbFile target = file;
         LockManager lockManager = getLockManager();
         if (lockManager != null) {
             file = lockManager.getLockedResource(file, auth);
         }
+        final String location = getRequestURL(request);
+        String contentRange = request.getHeader("Content-Range");
+        if (contentRange != null && partialUploads != null) {
+            // a locked resource can't be replaced by renaming.
+            if (file != target) {
+                response.sendError(HttpServletResponse.SC_CONFLICT);
+                return;
+            }
+            putPartial(request, response, file, length, contentRange,
+                    existsCurrently, location, auth);
+            return;
+        }
+        if (hashStore != null && existsCurrently && length >= 0 &&
+                file == target && file.length() >= deltaThreshold) {
+            checkWritable(file, true, auth);
+            putDelta(request, file, length, auth);
+            created(response, location);
+            response.flushBuffer();
+            return;
+        }
+        if (spool != null && length >= 0 && file == target) {
+            File data = spool.reserve(length);
+            if (data != null) {
+                try {
+                    checkWritable(file, existsCurrently, auth);
+                } catch (IOException ex) {
+                    spool.release(data, length);
+                    throw ex;
+                }
+                putSpooled(request, file, data, length);
+                created(response, location);
+                response.flushBuffer();
+                return;
+            }
+            Log.log(Log.DEBUG, "Spool full; not spooling \"{0}\".", file);
+        }
+        ExecutorService executor = getExecutor();
+        // a locked resource is held open by the lock manager, and can't be
+        // replaced by renaming.
+        if (executor != null && parallelThreshold > 0 &&
+                length >= parallelThreshold && parallelHandles > 1 &&
+                        file == target) {
+            checkWritable(file, existsCurrently, auth);
+            putParallel(request, file, length, existsCurrently, auth);
+            created(response, location);
+            response.flushBuffer();
+            return;
+        }
+        final HttpServletResponse asyncResponse = response;
+        AsyncTransport asyncTransport = getAsyncTransport();
+        if (asyncTransport != null && !limited &&
+                asyncTransport.isAvailable(request)) {
+            Log.log(Log.DEBUG, "Receiving \"{0}\" asynchronously.", file);
+            asyncTransport.receive(request, response,
+                    new SmbFileOutputStream(file), new Runnable() {
+                public void run() {
+                    created(asyncResponse, location);
+                }
+            });
+            return;
+        }
+        // content which may prove too large is received beside the
+        // target, so that an oversized upload leaves the target untouched.
+        SmbFile temp = (limited && file == target) ?
+                createTemporary(file, auth) : null;
+        // open the file first, so that a failure is reported before the
+        // client is told to continue.
+        OutputStream output = new SmbFileOutputStream((temp != null) ?
+                temp : file);
         InputStream input = request.getInputStream();
-        OutputStream output = new SmbFileOutputStream(file);
-        byte[] buf = new byte[8192];
-        int count;
-        while ((count = input.read(buf)) != -1) {
-            output.write(buf, 0, count);
-        }
-        output.flush();
-        output.close();
+        LimitInputStream limit = null;
+        if (limited) input = limit = new LimitInputStream(input,
+                maximumUploadSize);
+        try {
+            receive(input, output);
+        } catch (IOException ex) {
+            if (temp != null) removeTemporary(temp);
+            if (limit == null || !limit.isLimitExceeded()) throw ex;
+            Log.log(Log.INFORMATION, "Upload to \"{0}\" exceeded {1} bytes.",
+                    new Object[] { file, new Long(maximumUploadSize) });
+            // a locked file is written in place; only one created by this
+            // request may be removed.
+            if (temp == null && !existsCurrently) removeTemporary(file);
+            response.sendError(
+                    HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE);
+            return;
+        }
+        if (temp != null) replace(temp, file, existsCurrently);
+        created(response, location);
+        response.flushBuffer();
+    }
+
+    /**
+     * Copies the request content to the file on the request thread,
+     * pipelining the SMB writes if background transfers are enabled.
+     */
+    private void receive(InputStream input, OutputStream output)
+            throws IOException {
+        BufferPool bufferPool = getBufferPool();
+        ExecutorService executor = getExecutor();
+        if (executor != null && pipelineDepth > 0) {
+            // receive from the client while earlier chunks are written.
+            PipelinedOutputStream pipeline = new PipelinedOutputStream(output,
+                    Math.min(pipelineChunkSize,
+                            bufferPool.getMaximumBufferSize()),
+                                    pipelineDepth, executor, bufferPool);
+            try {
+                pipeline.readFrom(input);
+            } finally {
+                pipeline.close();
+            }
+            return;
+        }
+        byte[] buf = bufferPool.borrow(8192);
+        try {
+            int count;
+            while ((count = input.read(buf)) != -1) {
+                output.write(buf, 0, count);
+            }
+            output.flush();
+        } finally {
+            bufferPool.release(buf);
+            output.close();
+        }
+    }
+
+    /**
+     * Writes a range of the content into the target's partial file,
+     * replacing the target once the full length has been received.  If the
+     * partial file can't replace the target, it is kept (and hidden again)
+     * so that the final range may be retried.
+     */
+    private void putPartial(HttpServletRequest request,
+            HttpServletResponse response, SmbFile file, long length,
+                    String contentRange, boolean existsCurrently,
+                            String location, NtlmPasswordAuthentication auth)
+                                    throws IOException {
+        long[] range = SmbDAVUtilities.parseContentRange(contentRange);
+        if (range == null || (range[0] != -1 && length >= 0 &&
+                length != range[1] - range[0] + 1)) {
+            response.sendError(HttpServletResponse.SC_BAD_REQUEST);
+            return;
+        }
+        long total = range[2];
+        if (maximumUploadSize > 0 && total > maximumUploadSize) {
+            response.sendError(
+                    HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE);
+            return;
+        }
+        // a different total, target version or user is a different upload.
+        SmbFile partial = PartialUploads.getPartialFile(file, total,
+                SmbDAVUtilities.getETag(file), auth);
+        long committed = partialUploads.getCommittedOffset(partial);
+        if (range[0] > committed) {
+            setCommittedRange(response, committed);
+            response.sendError(HttpServletResponse.SC_CONFLICT);
+            return;
+        }
+        if (range[0] != -1) {
+            SmbRandomAccessFile handle = new SmbRandomAccessFile(partial, "rw");
+            BufferPool bufferPool = getBufferPool();
+            byte[] buf = bufferPool.borrow(8192);
+            try {
+                if (committed == 0) {
+                    hide(partial, true);
+                    partialUploads.discardExpired(partial, auth);
+                }
+                handle.seek(range[0]);
+                InputStream input = request.getInputStream();
+                long remaining = range[1] - range[0] + 1;
+                int count;
+                // whatever arrives is committed, even if the client
+                // disconnects part way.
+                while (remaining > 0 && (count = input.read(buf, 0,
+                        (int) Math.min(buf.length, remaining))) != -1) {
+                    handle.write(buf, 0, count);
+                    remaining -= count;
+                    committed = Math.max(committed, range[1] + 1 - remaining);
+                }
+                if (total >= 0 && committed > total) {
+                    handle.setLength(total);
+                    committed = total;
+                }
+            } finally {
+                bufferPool.release(buf);
+                handle.close();
+                partialUploads.touch(partial);
+            }
+        }
+        if (total < 0 || committed < total) {
+            setCommittedRange(response, committed);
+            response.setStatus(HttpServletResponse.SC_ACCEPTED);
+            response.flushBuffer();
+            return;
+        }
+        Log.log(Log.DEBUG, "Completed resumable upload of \"{0}\".", file);
+        hide(partial, false);
+        try {
+            SmbDAVUtilities.replace(partial, file);
+        } catch (IOException ex) {
+            hide(partial, true);
+            throw ex;
+        }
+        partialUploads.remove(partial);
+        created(response, location);
+        response.flushBuffer();
+    }
+
+    private void setCommittedRange(HttpServletResponse response,
+            long committed) {
+        if (committed > 0) {
+            response.setHeader("Range", "bytes=0-" + (committed - 1));
+        }
+    }
+
+    private void hide(SmbFile file, boolean hidden) {
+        try {
+            int attributes = file.getAttributes();
+            file.setAttributes(hidden ? (attributes | SmbFile.ATTR_HIDDEN) :
+                    (attributes & ~SmbFile.ATTR_HIDDEN));
+        } catch (IOException ex) {
+            Log.log(Log.DEBUG, "Unable to set attributes of \"{0}\": {1}",
+                    new Object[] { file, ex });
+        }
+    }
+
+    /**
+     * Returns the space available to the user on the share holding the
+     * given directory, or <code>Long.MAX_VALUE</code> if it can't be
+     * determined.
+     */
+    private long getAvailableSpace(SmbFile directory) {
+        try {
+            return directory.getDiskFreeSpace();
+        } catch (IOException ex) {
+            Log.log(Log.DEBUG, "Unable to get free space for \"{0}\": {1}",
+                    new Object[] { directory, ex });
+            return Long.MAX_VALUE;
+        }
+    }
+
+    private boolean isChunked(HttpServletRequest request) {
+        String encoding = request.getHeader("Transfer-Encoding");
+        return (encoding != null &&
+                encoding.toLowerCase().indexOf("chunked") != -1);
+    }
+
+    /**
+     * Uploads the content through several handles into a temporary file
+     * alongside the target, which then replaces the target.  If the upload
+     * fails, the temporary file is removed and the target is untouched.
+     * If the temporary file can't replace the target, it is removed only
+     * once the target is known to be intact.
+     */
+    private void putParallel(HttpServletRequest request, SmbFile file,
+            long length, boolean existsCurrently,
+                    NtlmPasswordAuthentication auth) throws IOException {
+        SmbFile temp = createTemporary(file, auth);
+        BufferPool bufferPool = getBufferPool();
+        Log.log(Log.DEBUG, "Uploading \"{0}\" through {1} handles.",
+                new Object[] { file, new Integer(parallelHandles) });
+        try {
+            ParallelOutputStream output = new ParallelOutputStream(temp,
+                    length, Math.min(pipelineChunkSize,
+                            bufferPool.getMaximumBufferSize()),
+                                    parallelHandles, getExecutor(),
+                                            bufferPool);
+            try {
+                output.readFrom(request.getInputStream());
+            } finally {
+                output.close();
+            }
+        } catch (IOException ex) {
+            removeTemporary(temp);
+            throw ex;
+        }
+        replace(temp, file, existsCurrently);
+    }
+
+    /**
+     * Opens the target for writing with the user's credentials, so that a
+     * path which receives the content before touching the target still
+     * refuses the request before reading it.  A target which does not yet
+     * exist is checked by creating (and removing) a temporary file beside
+     * it.
+     */
+    private void checkWritable(SmbFile file, boolean existsCurrently,
+            NtlmPasswordAuthentication auth) throws IOException {
+        if (existsCurrently) {
+            new SmbRandomAccessFile(file, "rw").close();
+            return;
+        }
+        SmbFile temp = createTemporary(file, auth);
+        new SmbFileOutputStream(temp).close();
+        removeTemporary(temp);
+    }
+
+    private SmbFile createTemporary(SmbFile file,
+            NtlmPasswordAuthentication auth) throws IOException {
+        // not subject to the resource filter, as the client never sees it.
+        String tempUrl = file.getParent() + "." + file.getName() + "." +
+                Long.toString(System.currentTimeMillis(), 36) + ".upload";
+        return (auth != null) ? new SmbFile(tempUrl, auth) :
+                new SmbFile(tempUrl);
+    }
+
+    /**
+     * Replaces the target with the temporary file.  If that fails, the
+     * temporary file is removed only once the target is known to be intact.
+     */
+    private void replace(SmbFile temp, SmbFile file, boolean existsCurrently)
+            throws IOException {
+        try {
+            SmbDAVUtilities.replace(temp, file);
+        } catch (IOException ex) {
+            if (!existsCurrently || file.exists()) {
+                removeTemporary(temp);
+            } else {
+                Log.log(Log.WARNING, "Upload to \"{0}\" kept in \"{1}\".",
+                        new Object[] { file, temp });
+            }
+            throw ex;
+        }
+    }
+
+    private void removeTemporary(SmbFile temp) {
+        try {
+            if (temp.exists()) temp.delete();
+        } catch (IOException ex) {
+            Log.log(Log.INFORMATION, "Unable to remove \"{0}\": {1}",
+                    new Object[] { temp, ex });
+        }
+    }
+
+    /**
+     * Overwrites the file in place, writing only the blocks which differ
+     * from its current content.  The content is first received into the
+     * spool (or, if that is disabled or full, a local temporary file), so
+     * that the file is only touched once the whole content has arrived.
+     */
+    private void putDelta(HttpServletRequest request, SmbFile file,
+            long length, NtlmPasswordAuthentication auth) throws IOException {
+        File data = (spool != null) ? spool.reserve(length) : null;
+        boolean spooled = (data != null);
+        if (!spooled) {
+            data = File.createTempFile("davenport-", ".delta", deltaDirectory);
+        }
+        try {
+            receiveDelta(request.getInputStream(), data, length);
+            InputStream input = new FileInputStream(data);
+            try {
+                writeDelta(input, file, length, auth);
+            } finally {
+                input.close();
+            }
+        } finally {
+            if (spooled) {
+                spool.release(data, length);
+            } else if (!data.delete()) {
+                Log.log(Log.WARNING, "Unable to delete \"{0}\".", data);
+            }
+        }
+    }
+
+    private void receiveDelta(InputStream input, File data, long length)
+            throws IOException {
+        OutputStream output = new FileOutputStream(data);
+        BufferPool bufferPool = getBufferPool();
+        byte[] buf = bufferPool.borrow(deltaBlockSize);
+        try {
+            long remaining = length;
+            while (remaining > 0) {
+                int count = input.read(buf, 0,
+                        (int) Math.min(buf.length, remaining));
+                if (count == -1) throw new EOFException();
+                output.write(buf, 0, count);
+                remaining -= count;
+            }
+        } finally {
+            bufferPool.release(buf);
+            output.close();
+        }
+    }
+
+    /**
+     * Writes the received content over the file.  Each block is compared
+     * against the recorded hash of the existing block if one is available,
+     * or otherwise against the existing block itself; the hashes of the
+     * new content are then recorded.  If the server fails part way, the
+     * file is left partially updated and its hashes are discarded.
+     */
+    private void writeDelta(InputStream input, SmbFile file, long length,
+            NtlmPasswordAuthentication auth) throws IOException {
+        long existingLength = file.length();
+        String etag = SmbDAVUtilities.getETag(file);
+        byte[][] existing = (etag != null) ? hashStore.get(file, etag,
+                existingLength, deltaBlockSize) : null;
+        // the file is about to change, whether or not this completes.
+        hashStore.remove(file);
+        int count = (int) ((length + deltaBlockSize - 1) / deltaBlockSize);
+        byte[][] hashes = new byte[count][];
+        int changed = 0;
+        MessageDigest digest = BlockHashStore.newDigest();
+        BufferPool bufferPool = getBufferPool();
+        // both buffers are borrowed at once, so neither is held waiting.
+        byte[][] buffers = bufferPool.borrow(deltaBlockSize,
+                (existing == null) ? 2 : 1);
+        byte[] block = buffers[0];
+        byte[] current = (existing == null) ? buffers[1] : null;
+        SmbRandomAccessFile handle = null;
+        try {
+            handle = new SmbRandomAccessFile(file, "rw");
+            for (int i = 0; i < count; i++) {
+                long offset = (long) i * deltaBlockSize;
+                int size = (int) Math.min(deltaBlockSize, length - offset);
+                readFully(input, block, size);
+                digest.update(block, 0, size);
+                hashes[i] = digest.digest();
+                boolean same = false;
+                if (offset + size <= existingLength) {
+                    if (existing != null) {
+                        same = (i < existing.length &&
+                                Arrays.equals(existing[i], hashes[i]));
+                    } else {
+                        handle.seek(offset);
+                        handle.readFully(current, 0, size);
+                        same = equals(block, current, size);
+                    }
+                }
+                if (same) continue;
+                handle.seek(offset);
+                handle.write(block, 0, size);
+                changed++;
+            }
+            if (existingLength != length) handle.setLength(length);
+        } catch (IOException ex) {
+            if (changed > 0) {
+                Log.log(Log.WARNING, "Delta write to \"{0}\" failed after " +
+                        "{1} blocks; file left partially updated: {2}",
+                                new Object[] { file, new Integer(changed),
+                                        ex });
+            }
+            throw ex;
+        } finally {
+            bufferPool.release(block);
+            bufferPool.release(current);
+            if (handle != null) handle.close();
+        }
+        if (changed == 0 && existingLength == length) {
+            file.setLastModified(System.currentTimeMillis());
+        }
+        Log.log(Log.DEBUG, "Wrote {0} of {1} blocks to \"{2}\" ({3}).",
+                new Object[] { new Integer(changed), new Integer(count), file,
+                        (existing != null) ? "hashed" : "compared" });
+        // attributes cached by the handle may predate the write.
+        etag = SmbDAVUtilities.getETag((auth != null) ?
+                new SmbFile(file.toString(), auth) :
+                        new SmbFile(file.toString()));
+        if (etag != null) {
+            hashStore.put(file, etag, length, deltaBlockSize, hashes);
+        }
+    }
+
+    private void readFully(InputStream input, byte[] buffer, int length)
+            throws IOException {
+        int offset = 0;
+        while (offset < length) {
+            int count = input.read(buffer, offset, length - offset);
+            if (count == -1) throw new EOFException();
+            offset += count;
+        }
+    }
+
+    private boolean equals(byte[] first, byte[] second, int length) {
+        for (int i = 0; i < length; i++) {
+            if (first[i] != second[i]) return false;
+        }
+        return true;
+    }
+
+    /**
+     * Receives the content into the given spool file, then either writes
+     * it to the target or queues it to be written in the background.
+     */
+    private void putSpooled(HttpServletRequest request, SmbFile file,
+            File data, long length) throws IOException {
+        try {
+            spool.receive(request.getInputStream(), data, length,
+                    writeBehind);
+            if (writeBehind) {
+                spool.enqueue(data, length, file);
+                Log.log(Log.DEBUG, "Queued spooled upload to \"{0}\".", file);
+                return;
+            }
+        } catch (IOException ex) {
+            spool.release(data, length);
+            throw ex;
+        }
+        Log.log(Log.DEBUG, "Writing spooled upload to \"{0}\".", file);
+        spool.burst(data, length, file);
+    }
+
+    private void created(HttpServletResponse response, String location) {
         response.setStatus(HttpServletResponse.SC_CREATED);
-        response.setHeader("Location", getRequestURL(request));
+        response.setHeader("Location", location);
         response.setHeader("Allow", "OPTIONS, HEAD, GET, DELETE, PROPFIND, " +
-                "PROPPATCH, COPY, MOVE, PUT");
-        response.flushBuffer();
+                "PROPPATCH, COPY, MOVE, PUT, PATCH");
     }
 
 }
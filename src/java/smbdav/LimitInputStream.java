@@ -38,6 +38,8 @@ public class LimitInputStream extends FilterInputStream {
 
     private long markRead;
 
+    private boolean exceeded;
+
     /**
      * Creates a <code>LimitInputStream</code> from the specified underlying
      * stream, using the provided limit.  Attempts to read after the limit
@@ -58,17 +60,16 @@ public class LimitInputStream extends FilterInputStream {
      * @return An <code>int</code> containing the next byte of data, or -1
      * if the end of the stream is reached.
      * @throws IOException If an IO error occurs.
-     * @throws EOFException If the limit has already been read.
+     * @throws EOFException If the limit has already been read and the
+     * underlying stream holds more data.
      */
     public int read() throws IOException {
         if (amountRead >= limit) {
-            Log.log(Log.INFORMATION,
-                    "Blocked attempt to read past limit; request too big.");
-            throw new EOFException(SmbDAVUtilities.getResource(
-                    LimitInputStream.class, "limitReached", null, null));
+            if (super.read() == -1) return -1;
+            limitReached();
         }
         int val = super.read();
-        ++amountRead;
+        if (val != -1) ++amountRead;
         return val;
     }
 
@@ -79,7 +80,8 @@ public class LimitInputStream extends FilterInputStream {
      * @return An <code>int</code> indicating the number of bytes read, or
      * -1 if the end of the stream is reached.
      * @throws IOException If an IO error occurs.
-     * @throws EOFException If the limit has already been read.
+     * @throws EOFException If the limit has already been read and the
+     * underlying stream holds more data.
      */ 
     public int read(byte[] b) throws IOException {
         return read(b, 0, b.length);
@@ -96,23 +98,32 @@ public class LimitInputStream extends FilterInputStream {
      * @return An <code>int</code> indicating the number of bytes read, or
      * -1 if the end of the stream is reached.
      * @throws IOException If an IO error occurs.
-     * @throws EOFException If the limit has already been read.
+     * @throws EOFException If the limit has already been read and the
+     * underlying stream holds more data.
      */ 
     public int read(byte[] b, int offset, int length) throws IOException {
-        int remaining = (int) (limit - amountRead);
-        if (remaining == 0 && length > 0) {
-            Log.log(Log.INFORMATION,
-                    "Blocked attempt to read past limit; request too big.");
-            throw new EOFException(SmbDAVUtilities.getResource(
-                    LimitInputStream.class, "limitReached", null, null));
+        long remaining = limit - amountRead;
+        if (remaining <= 0 && length > 0) {
+            // content of exactly the limit is fine; only more is an error.
+            if (super.read() == -1) return -1;
+            limitReached();
         }
-        // if remaining is negative, should indicate an overflow -- plenty left.
-        length = (remaining > 0) ? Math.min(length, remaining) : length;
+        length = (int) Math.min(length, remaining);
         int count = super.read(b, offset, length);
-        amountRead += count;
+        if (count > 0) amountRead += count;
         return count;
     }
 
+    /**
+     * Indicates whether an attempt was made to read past the limit.
+     *
+     * @return <code>true</code> if the underlying stream contained more
+     * data than the limit allows.
+     */
+    public boolean isLimitExceeded() {
+        return exceeded;
+    }
+
     /**
      * Marks the current position in the stream.  This implementation also
      * marks the amount read, to allow a rollback (if marks are supported
@@ -138,4 +149,12 @@ public class LimitInputStream extends FilterInputStream {
         amountRead = markRead;
     }
 
+    private void limitReached() throws EOFException {
+        exceeded = true;
+        Log.log(Log.INFORMATION,
+                "Blocked attempt to read past limit; request too big.");
+        throw new EOFException(SmbDAVUtilities.getResource(
+                LimitInputStream.class, "limitReached", null, null));
+    }
+
 }
@@ -0,0 +1,134 @@
+/* Davenport WebDAV SMB Gateway
+ * Copyright (C) 2004  Eric Glass
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+package smbdav;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Holds rendered directory listings.  Each listing is stored under a key
+ * identifying the request (collection, view, locale and user) together
+ * with the entity tag computed from the state of the collection when it
+ * was rendered; a listing is only returned if the collection's current
+ * entity tag matches.  The total size of the cache is bounded, with the
+ * least recently used listings evicted first.
+ *
+ * @author Eric Glass
+ */
+public class ListingCache {
+
+    private final Map entries = new LinkedHashMap(16, 0.75f, true);
+
+    private final long maximumSize;
+
+    private final int maximumEntrySize;
+
+    private long size;
+
+    private long hits;
+
+    private long misses;
+
+    /**
+     * Creates a <code>ListingCache</code>.
+     *
+     * @param maximumSize The largest number of bytes the cache will hold.
+     */
+    public ListingCache(long maximumSize) {
+        this.maximumSize = maximumSize;
+        this.maximumEntrySize = (int) Math.min(maximumSize / 8,
+                Integer.MAX_VALUE);
+    }
+
+    /**
+     * Returns the size of the largest listing that will be cached.
+     *
+     * @return An <code>int</code> containing the maximum entry size.
+     */
+    public int getMaximumEntrySize() {
+        return maximumEntrySize;
+    }
+
+    /**
+     * Returns the cached listing for the given key, if it was rendered
+     * from a collection with the specified entity tag.
+     *
+     * @param key The key identifying the listing.
+     * @param etag The current entity tag of the listing.
+     * @return A <code>byte[]</code> containing the rendered listing, or
+     * <code>null</code> if no current listing is cached.
+     */
+    public synchronized byte[] get(String key, String etag) {
+        Entry entry = (Entry) entries.get(key);
+        if (entry == null || !entry.etag.equals(etag)) {
+            misses++;
+            return null;
+        }
+        hits++;
+        return entry.data;
+    }
+
+    /**
+     * Adds a rendered listing to the cache.
+     *
+     * @param key The key identifying the listing.
+     * @param etag The entity tag of the listing.
+     * @param data The rendered listing.
+     */
+    public synchronized void put(String key, String etag, byte[] data) {
+        if (data.length > maximumEntrySize) return;
+        Entry previous = (Entry) entries.remove(key);
+        if (previous != null) size -= previous.data.length;
+        entries.put(key, new Entry(etag, data));
+        size += data.length;
+        Iterator iterator = entries.values().iterator();
+        while (size > maximumSize && iterator.hasNext()) {
+            size -= ((Entry) iterator.next()).data.length;
+            iterator.remove();
+        }
+    }
+
+    /**
+     * Removes all entries from the cache.
+     */
+    public synchronized void clear() {
+        entries.clear();
+        size = 0;
+    }
+
+    public synchronized String toString() {
+        return "ListingCache[size=" + size + ",entries=" + entries.size() +
+                ",hits=" + hits + ",misses=" + misses + "]";
+    }
+
+    private static class Entry {
+
+        private final String etag;
+
+        private final byte[] data;
+
+        public Entry(String etag, byte[] data) {
+            this.etag = etag;
+            this.data = data;
+        }
+
+    }
+
+}
@@ -29,6 +29,8 @@ import java.util.Date;
 import java.util.Enumeration;
 import java.util.Properties;
 
+import java.util.concurrent.locks.ReentrantLock;
+
 /**
  * Provides logging utility functionality.  A provider can extend this
  * class and is specified by the "smbdav.Log" system property, or via
@@ -71,10 +73,12 @@ public abstract class Log {
     private static final String RESOURCE = "/META-INF/services/" +
             Log.class.getName();
 
-    private static Log instance;
+    private static volatile Log instance;
 
     private static boolean logFailureDetected = false;
 
+    private final ReentrantLock lock = new ReentrantLock();
+
     private int logThreshold = CRITICAL;
 
     /**
@@ -254,8 +258,13 @@ public abstract class Log {
             } catch (Exception ex) { }
         }
         try {
-            synchronized (this) {
+            // not synchronized, so a (virtual) thread blocked on output
+            // does not pin its carrier.
+            lock.lock();
+            try {
                 logMessage(level, message);
+            } finally {
+                lock.unlock();
             }
         } catch (Throwable logFailure) {
             synchronized (Log.class) {
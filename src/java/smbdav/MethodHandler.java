@@ -88,6 +88,12 @@ public interface MethodHandler {
      */ 
     public static final int SC_FAILED_DEPENDENCY = 424;
 
+    /**
+     * Status code (428) indicating that the server requires the request to
+     * be conditional.
+     */ 
+    public static final int SC_PRECONDITION_REQUIRED = 428;
+
     /**
      * Status code (507) indicating that the method could not be performed
      * on a resource because the server is unable to store the representation
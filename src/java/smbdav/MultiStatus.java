@@ -0,0 +1,265 @@
+/* Davenport WebDAV SMB Gateway
+ * Copyright (C) 2004  Eric Glass
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+package smbdav;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+import javax.servlet.http.HttpServletResponse;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+
+import javax.xml.transform.Transformer;
+import javax.xml.transform.TransformerException;
+import javax.xml.transform.TransformerFactory;
+
+import javax.xml.transform.dom.DOMSource;
+
+import javax.xml.transform.stream.StreamResult;
+
+import jcifs.smb.NtStatus;
+import jcifs.smb.SmbAuthException;
+import jcifs.smb.SmbException;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+
+/**
+ * Collects the per-resource results of an operation affecting several
+ * resources, and sends them as a WebDAV 207 (Multi-Status) response.
+ * Results may be added concurrently by tasks operating on different
+ * resources.
+ *
+ * @author Eric Glass
+ */
+public class MultiStatus {
+
+    private final List results = new ArrayList();
+
+    /**
+     * Records the result of the operation on the specified resource.
+     *
+     * @param href The (escaped) URL of the resource.
+     * @param status The HTTP status code of the result.
+     */
+    public synchronized void add(String href, int status) {
+        results.add(new Result(href, status));
+    }
+
+    /**
+     * Records the failure of the operation on the specified resource,
+     * mapping the error to an appropriate status code.
+     *
+     * @param href The (escaped) URL of the resource.
+     * @param throwable The error which caused the operation to fail.
+     */
+    public void add(String href, Throwable throwable) {
+        Log.log(Log.DEBUG, "Operation on \"{0}\" failed: {1}",
+                new Object[] { href, throwable });
+        add(href, getStatus(throwable));
+    }
+
+    /**
+     * Returns the number of results recorded.
+     *
+     * @return An <code>int</code> containing the number of results.
+     */
+    public synchronized int size() {
+        return results.size();
+    }
+
+    /**
+     * Indicates whether any recorded result has a status outside the 2xx
+     * range.
+     *
+     * @return <code>true</code> if the operation failed for any resource.
+     */
+    public synchronized boolean hasFailures() {
+        Iterator iterator = results.iterator();
+        while (iterator.hasNext()) {
+            int status = ((Result) iterator.next()).status;
+            if (status < 200 || status >= 300) return true;
+        }
+        return false;
+    }
+
+    /**
+     * Sends the recorded results as a 207 (Multi-Status) response.
+     *
+     * @param response The servlet response.
+     * @throws IOException If an IO error occurs.
+     */
+    public void send(HttpServletResponse response) throws IOException {
+        try {
+            DocumentBuilderFactory builderFactory =
+                    DocumentBuilderFactory.newInstance();
+            builderFactory.setNamespaceAware(true);
+            Document document =
+                    builderFactory.newDocumentBuilder().newDocument();
+            Element multistatus = document.createElementNS(
+                    Property.DAV_NAMESPACE, "multistatus");
+            multistatus.setAttributeNS("http://www.w3.org/2000/xmlns/",
+                    "xmlns", Property.DAV_NAMESPACE);
+            document.appendChild(multistatus);
+            synchronized (this) {
+                Iterator iterator = results.iterator();
+                while (iterator.hasNext()) {
+                    Result result = (Result) iterator.next();
+                    Element element = document.createElementNS(
+                            Property.DAV_NAMESPACE, "response");
+                    Element href = document.createElementNS(
+                            Property.DAV_NAMESPACE, "href");
+                    href.appendChild(document.createTextNode(result.href));
+                    element.appendChild(href);
+                    Element status = document.createElementNS(
+                            Property.DAV_NAMESPACE, "status");
+                    status.appendChild(document.createTextNode(
+                            getStatusLine(result.status)));
+                    element.appendChild(status);
+                    multistatus.appendChild(element);
+                }
+            }
+            Transformer transformer =
+                    TransformerFactory.newInstance().newTransformer();
+            transformer.setOutputProperty("encoding", "UTF-8");
+            ByteArrayOutputStream collector = new ByteArrayOutputStream();
+            transformer.transform(new DOMSource(document),
+                    new StreamResult(collector));
+            response.setStatus(MethodHandler.SC_MULTISTATUS);
+            response.setContentType("text/xml; charset=\"utf-8\"");
+            response.setContentLength(collector.size());
+            collector.writeTo(response.getOutputStream());
+            response.flushBuffer();
+        } catch (TransformerException ex) {
+            throw new IOException(ex.getMessage());
+        } catch (IOException ex) {
+            throw ex;
+        } catch (Exception ex) {
+            throw new IOException(ex.getMessage());
+        }
+    }
+
+    /**
+     * Maps an error from an SMB operation to an HTTP status code.
+     *
+     * @param throwable The error.
+     * @return An <code>int</code> containing the HTTP status code.
+     */
+    public static int getStatus(Throwable throwable) {
+        if (throwable instanceof SmbAuthException) {
+            return HttpServletResponse.SC_FORBIDDEN;
+        }
+        if (!(throwable instanceof SmbException)) {
+            return HttpServletResponse.SC_INTERNAL_SERVER_ERROR;
+        }
+        switch (((SmbException) throwable).getNtStatus()) {
+        case NtStatus.NT_STATUS_ACCESS_DENIED:
+            return HttpServletResponse.SC_FORBIDDEN;
+        case NtStatus.NT_STATUS_SHARING_VIOLATION:
+            return MethodHandler.SC_LOCKED;
+        case NtStatus.NT_STATUS_OBJECT_NAME_COLLISION:
+            return HttpServletResponse.SC_PRECONDITION_FAILED;
+        case NtStatus.NT_STATUS_OBJECT_NAME_NOT_FOUND:
+            return HttpServletResponse.SC_NOT_FOUND;
+        case NtStatus.NT_STATUS_OBJECT_PATH_NOT_FOUND:
+            return HttpServletResponse.SC_CONFLICT;
+        case NtStatus.NT_STATUS_OBJECT_NAME_INVALID:
+        case NtStatus.NT_STATUS_OBJECT_PATH_INVALID:
+            return HttpServletResponse.SC_BAD_REQUEST;
+        default:
+            return HttpServletResponse.SC_INTERNAL_SERVER_ERROR;
+        }
+    }
+
+    /**
+     * Returns the HTTP status line for the given status code, as used in
+     * the WebDAV <code>status</code> element.
+     *
+     * @param status The HTTP status code.
+     * @return A <code>String</code> containing the status line.
+     */
+    public static String getStatusLine(int status) {
+        String reason;
+        switch (status) {
+        case HttpServletResponse.SC_OK:
+            reason = "OK";
+            break;
+        case HttpServletResponse.SC_CREATED:
+            reason = "Created";
+            break;
+        case HttpServletResponse.SC_NO_CONTENT:
+            reason = "No Content";
+            break;
+        case HttpServletResponse.SC_BAD_REQUEST:
+            reason = "Bad Request";
+            break;
+        case HttpServletResponse.SC_FORBIDDEN:
+            reason = "Forbidden";
+            break;
+        case HttpServletResponse.SC_NOT_FOUND:
+            reason = "Not Found";
+            break;
+        case HttpServletResponse.SC_CONFLICT:
+            reason = "Conflict";
+            break;
+        case HttpServletResponse.SC_PRECONDITION_FAILED:
+            reason = "Precondition Failed";
+            break;
+        case HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE:
+            reason = "Request Entity Too Large";
+            break;
+        case MethodHandler.SC_LOCKED:
+            reason = "Locked";
+            break;
+        case MethodHandler.SC_FAILED_DEPENDENCY:
+            reason = "Failed Dependency";
+            break;
+        case HttpServletResponse.SC_BAD_GATEWAY:
+            reason = "Bad Gateway";
+            break;
+        case MethodHandler.SC_INSUFFICIENT_STORAGE:
+            reason = "Insufficient Storage";
+            break;
+        case HttpServletResponse.SC_INTERNAL_SERVER_ERROR:
+            reason = "Internal Server Error";
+            break;
+        default:
+            return "HTTP/1.1 " + status;
+        }
+        return "HTTP/1.1 " + status + " " + reason;
+    }
+
+    private static class Result {
+
+        private final String href;
+
+        private final int status;
+
+        public Result(String href, int status) {
+            this.href = href;
+            this.status = status;
+        }
+
+    }
+
+}
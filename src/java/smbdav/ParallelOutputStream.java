@@ -0,0 +1,328 @@
+/* Davenport WebDAV SMB Gateway
+ * Copyright (C) 2004  Eric Glass
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+package smbdav;
+
+import java.io.EOFException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.IOException;
+import java.io.OutputStream;
+
+import java.util.Iterator;
+import java.util.LinkedList;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+
+import jcifs.smb.SmbFile;
+import jcifs.smb.SmbRandomAccessFile;
+
+/**
+ * Writes content of a known length to an SMB file through several file
+ * handles at once.  The file is first extended to its final length; the
+ * content is then divided into fixed-size chunks, each of which is
+ * written at its own offset by a task on the supplied executor through
+ * one of a set of handles.  Since chunks occupy disjoint regions of the
+ * file, the order in which they complete does not matter.
+ * <p>
+ * At most the configured number of chunks are outstanding; the producer
+ * waits for the oldest once that many are in flight.  Chunk buffers are
+ * drawn from a {@link BufferPool}.
+ * <p>
+ * If a write fails, or the stream is closed before the full length has
+ * been written, <code>close</code> throws an exception and the file is
+ * left with undefined content; the caller is responsible for discarding
+ * it.
+ *
+ * @author Eric Glass
+ */
+public class ParallelOutputStream extends OutputStream {
+
+    private final SmbFile file;
+
+    private final long length;
+
+    private final int chunkSize;
+
+    private final int maximumDepth;
+
+    private final Executor executor;
+
+    private final BufferPool bufferPool;
+
+    private final LinkedList pending = new LinkedList();
+
+    private final LinkedList handles = new LinkedList();
+
+    private long nextOffset;
+
+    private byte[] current;
+
+    private int position;
+
+    private int limit;
+
+    private volatile boolean closed;
+
+    /**
+     * Creates a <code>ParallelOutputStream</code>, extending the
+     * specified file to the given length.
+     *
+     * @param file The file to be written.
+     * @param length The total length of the content.
+     * @param chunkSize The size of each write issued against the server.
+     * @param maximumDepth The largest number of writes that will be
+     * outstanding at once (and the number of file handles used).
+     * @param executor The executor on which writes are performed.
+     * @param bufferPool The pool from which chunk buffers are obtained.
+     * @throws IOException If the file could not be opened or sized.
+     */
+    public ParallelOutputStream(SmbFile file, long length, int chunkSize,
+            int maximumDepth, Executor executor, BufferPool bufferPool)
+                    throws IOException {
+        this.file = file;
+        this.length = length;
+        this.chunkSize = chunkSize;
+        this.maximumDepth = Math.max(maximumDepth, 1);
+        this.executor = executor;
+        this.bufferPool = bufferPool;
+        SmbRandomAccessFile handle = new SmbRandomAccessFile(file, "rw");
+        try {
+            handle.setLength(length);
+        } catch (IOException ex) {
+            closeHandle(handle);
+            throw ex;
+        }
+        handles.add(handle);
+    }
+
+    public void write(int b) throws IOException {
+        write(new byte[] { (byte) b }, 0, 1);
+    }
+
+    public void write(byte[] b, int offset, int length) throws IOException {
+        if (closed) throw new IOException("Stream closed.");
+        while (length > 0) {
+            if (current == null) startChunk();
+            int count = Math.min(length, limit - position);
+            System.arraycopy(b, offset, current, position, count);
+            position += count;
+            offset += count;
+            length -= count;
+            if (position == limit) submit();
+        }
+    }
+
+    /**
+     * Reads the remainder of the content from the specified stream,
+     * receiving directly into the chunk buffers.
+     *
+     * @param input The stream from which data is read.
+     * @throws IOException If an IO error occurs, or the stream ends before
+     * the full length has been read.
+     */
+    public void readFrom(InputStream input) throws IOException {
+        if (closed) throw new IOException("Stream closed.");
+        while (nextOffset + position < length) {
+            if (current == null) startChunk();
+            int count = input.read(current, position,
+                    limit - position);
+            if (count == -1) throw new EOFException();
+            position += count;
+            if (position == limit) submit();
+        }
+    }
+
+    /**
+     * Waits for all outstanding writes and closes the file handles.
+     *
+     * @throws IOException If a write failed, or fewer bytes than the
+     * declared length were written.
+     */
+    public void close() throws IOException {
+        if (closed) return;
+        try {
+            if (current != null && position > 0) submit();
+            while (!pending.isEmpty()) complete();
+            if (nextOffset != length) {
+                throw new EOFException("Expected " + length +
+                        " bytes, received " + nextOffset + ".");
+            }
+        } finally {
+            closed = true;
+            discard();
+            synchronized (handles) {
+                while (!handles.isEmpty()) {
+                    closeHandle((SmbRandomAccessFile) handles.removeFirst());
+                }
+            }
+        }
+    }
+
+    private void startChunk() throws IOException {
+        long remaining = length - nextOffset;
+        if (remaining <= 0) {
+            throw new IOException("Content exceeds declared length.");
+        }
+        int size = (int) Math.min(chunkSize, remaining);
+        while (pending.size() >= maximumDepth) complete();
+        // only wait for a buffer if nothing else is outstanding.
+        byte[] buffer = pending.isEmpty() ? bufferPool.borrow(size) :
+                bufferPool.tryBorrow(size);
+        while (buffer == null) {
+            complete();
+            buffer = pending.isEmpty() ? bufferPool.borrow(size) :
+                    bufferPool.tryBorrow(size);
+        }
+        current = buffer;
+        position = 0;
+        limit = size;
+    }
+
+    private void submit() {
+        Chunk chunk = new Chunk(nextOffset, current, position);
+        nextOffset += position;
+        current = null;
+        position = 0;
+        pending.addLast(chunk);
+        executor.execute(chunk.task);
+    }
+
+    /**
+     * Waits for the oldest outstanding write.
+     */
+    private void complete() throws IOException {
+        Chunk chunk = (Chunk) pending.removeFirst();
+        try {
+            chunk.task.get();
+        } catch (InterruptedException ex) {
+            chunk.abandon();
+            throw new InterruptedIOException();
+        } catch (ExecutionException ex) {
+            Throwable cause = ex.getCause();
+            if (cause instanceof IOException) throw (IOException) cause;
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new IOException(String.valueOf(cause));
+        } finally {
+            chunk.abandon();
+        }
+    }
+
+    private void discard() {
+        Iterator iterator = pending.iterator();
+        while (iterator.hasNext()) {
+            Chunk chunk = (Chunk) iterator.next();
+            chunk.task.cancel(false);
+            chunk.abandon();
+        }
+        pending.clear();
+        if (current != null) {
+            bufferPool.release(current);
+            current = null;
+        }
+    }
+
+    private SmbRandomAccessFile borrowHandle() throws IOException {
+        synchronized (handles) {
+            if (!handles.isEmpty()) {
+                return (SmbRandomAccessFile) handles.removeFirst();
+            }
+        }
+        return new SmbRandomAccessFile(file, "rw");
+    }
+
+    private void returnHandle(SmbRandomAccessFile handle) {
+        synchronized (handles) {
+            if (!closed) {
+                handles.addLast(handle);
+                return;
+            }
+        }
+        closeHandle(handle);
+    }
+
+    private void closeHandle(SmbRandomAccessFile handle) {
+        try {
+            handle.close();
+        } catch (IOException ex) {
+            Log.log(Log.DEBUG, "Unable to close write handle: {0}", ex);
+        }
+    }
+
+    private class Chunk implements Callable {
+
+        private final FutureTask task = new FutureTask(this);
+
+        private final long offset;
+
+        private final byte[] data;
+
+        private final int length;
+
+        private boolean running;
+
+        private boolean abandoned;
+
+        public Chunk(long offset, byte[] data, int length) {
+            this.offset = offset;
+            this.data = data;
+            this.length = length;
+        }
+
+        public Object call() throws IOException {
+            synchronized (this) {
+                if (abandoned) return this;
+                running = true;
+            }
+            try {
+                SmbRandomAccessFile handle = borrowHandle();
+                try {
+                    handle.seek(offset);
+                    handle.write(data, 0, length);
+                } catch (IOException ex) {
+                    closeHandle(handle);
+                    throw ex;
+                }
+                returnHandle(handle);
+                return this;
+            } finally {
+                synchronized (this) {
+                    running = false;
+                    if (abandoned) bufferPool.release(data);
+                }
+            }
+        }
+
+        /**
+         * Releases the buffer now if no write is in progress, otherwise
+         * when the write completes.
+         */
+        public synchronized void abandon() {
+            if (abandoned) return;
+            abandoned = true;
+            if (!running) bufferPool.release(data);
+        }
+
+    }
+
+}
@@ -0,0 +1,256 @@
+/* Davenport WebDAV SMB Gateway
+ * Copyright (C) 2004  Eric Glass
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+package smbdav;
+
+import java.io.IOException;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Timer;
+import java.util.TimerTask;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+import jcifs.smb.NtlmPasswordAuthentication;
+import jcifs.smb.SmbFile;
+import jcifs.smb.SmbFilenameFilter;
+
+/**
+ * Tracks the partial files of resumable uploads.  The content of a
+ * resumable upload is accumulated in a hidden file alongside its target
+ * (named "<code>.</code><i>name</i><code>.</code><i>key</i><code>.partial</code>");
+ * the length of this file is the offset up to which the upload has been
+ * committed.  The key binds the partial file to a single upload: it is
+ * derived from the declared total length, the entity tag of the target
+ * being replaced, and the user.  A request differing in any of these
+ * sees none of the content committed by another upload.
+ * <p>
+ * Partial files which have not been written to for longer than the
+ * configured expiry are considered abandoned, and are deleted by a
+ * periodic sweep.  Partial files left over from a previous run of the
+ * server are not known to the sweep; these are discarded when next
+ * encountered, if they have expired.
+ *
+ * @author Eric Glass
+ */
+public class PartialUploads {
+
+    private static final Timer TIMER = new Timer(true);
+
+    private final Map uploads = new ConcurrentHashMap();
+
+    private final long expiry;
+
+    private final TimerTask sweeper;
+
+    /**
+     * Creates a <code>PartialUploads</code> registry.
+     *
+     * @param expiry The time, in milliseconds, after which an idle
+     * partial upload is abandoned.
+     */
+    public PartialUploads(long expiry) {
+        this.expiry = expiry;
+        sweeper = new TimerTask() {
+            public void run() {
+                sweep();
+            }
+        };
+        long period = Math.max(expiry / 4, 60000l);
+        TIMER.schedule(sweeper, period, period);
+    }
+
+    /**
+     * Returns the partial file used for the specified upload.
+     *
+     * @param file The target of the upload.
+     * @param total The total length declared by the upload, or -1 if it is
+     * not known.
+     * @param etag The entity tag of the target being replaced, or
+     * <code>null</code> if it does not exist.
+     * @param auth The authentication information used to access the
+     * partial file.
+     * @return An <code>SmbFile</code> for the partial file.
+     * @throws IOException If the partial file's URL could not be
+     * constructed.
+     */
+    public static SmbFile getPartialFile(SmbFile file, long total,
+            String etag, NtlmPasswordAuthentication auth) throws IOException {
+        String binding = ((total >= 0) ? Long.toString(total) : "*") + ":" +
+                ((etag != null) ? etag : "") + ":" +
+                        ((auth != null) ? auth.getName() : "");
+        byte[] hashBytes;
+        try {
+            hashBytes = MessageDigest.getInstance("MD5").digest(
+                    binding.getBytes("UTF-8"));
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IllegalStateException("MD5 unavailable.");
+        }
+        StringBuffer key = new StringBuffer();
+        for (int i = 0; i < 8; i++) {
+            key.append(Integer.toHexString((hashBytes[i] >> 4) & 0x0f));
+            key.append(Integer.toHexString(hashBytes[i] & 0x0f));
+        }
+        String url = file.getParent() + "." + file.getName() + "." + key +
+                ".partial";
+        return (auth != null) ? new SmbFile(url, auth) : new SmbFile(url);
+    }
+
+    /**
+     * Deletes the expired partial files of other uploads to the same
+     * target as the given partial file.  Those left over from a previous
+     * run of the server are otherwise never encountered again, as a new
+     * upload uses a partial file of its own.
+     *
+     * @param partial The partial file of an upload being started.
+     * @param auth The authentication information used to access the
+     * partial files.
+     */
+    public void discardExpired(SmbFile partial,
+            NtlmPasswordAuthentication auth) {
+        if (expiry <= 0) return;
+        final String self = partial.getName();
+        // ".name.key.partial" less the key.
+        final String prefix = self.substring(0, self.lastIndexOf('.',
+                self.length() - ".partial".length() - 1) + 1);
+        try {
+            SmbFile parent = (auth != null) ?
+                    new SmbFile(partial.getParent(), auth) :
+                            new SmbFile(partial.getParent());
+            SmbFile[] others = parent.listFiles(new SmbFilenameFilter() {
+                public boolean accept(SmbFile dir, String name) {
+                    return name.startsWith(prefix) &&
+                            name.endsWith(".partial") &&
+                                    name.length() == self.length() &&
+                                            !name.equals(self);
+                }
+            });
+            long now = System.currentTimeMillis();
+            for (int i = 0; i < others.length; i++) {
+                if (uploads.containsKey(others[i].toString()) ||
+                        now - others[i].lastModified() <= expiry) {
+                    continue;
+                }
+                Log.log(Log.DEBUG,
+                        "Discarding expired partial upload \"{0}\".",
+                                others[i]);
+                others[i].delete();
+            }
+        } catch (IOException ex) {
+            Log.log(Log.DEBUG,
+                    "Unable to discard expired uploads beside \"{0}\": {1}",
+                            new Object[] { partial, ex });
+        }
+    }
+
+    /**
+     * Returns the offset up to which content has been committed to the
+     * given partial file.  If the partial file has expired, it is deleted
+     * and 0 is returned.
+     *
+     * @param partial The partial file.
+     * @return A <code>long</code> containing the committed offset.
+     * @throws IOException If an IO error occurs.
+     */
+    public long getCommittedOffset(SmbFile partial) throws IOException {
+        if (!partial.exists()) return 0l;
+        if (expiry > 0 && !uploads.containsKey(partial.toString()) &&
+                System.currentTimeMillis() - partial.lastModified() > expiry) {
+            Log.log(Log.DEBUG, "Discarding expired partial upload \"{0}\".",
+                    partial);
+            partial.delete();
+            return 0l;
+        }
+        return partial.length();
+    }
+
+    /**
+     * Records activity on the given partial file.
+     *
+     * @param partial The partial file.
+     */
+    public void touch(SmbFile partial) {
+        uploads.put(partial.toString(), new Upload(partial));
+    }
+
+    /**
+     * Removes the given partial file from the registry, once it has been
+     * completed or discarded.
+     *
+     * @param partial The partial file.
+     */
+    public void remove(SmbFile partial) {
+        uploads.remove(partial.toString());
+    }
+
+    /**
+     * Deletes the partial files which have expired.
+     */
+    public void sweep() {
+        if (expiry <= 0) return;
+        long now = System.currentTimeMillis();
+        Iterator iterator = uploads.values().iterator();
+        while (iterator.hasNext()) {
+            Upload upload = (Upload) iterator.next();
+            if (now - upload.touched <= expiry) continue;
+            iterator.remove();
+            try {
+                if (upload.partial.exists()) {
+                    Log.log(Log.DEBUG, "Removing abandoned upload \"{0}\".",
+                            upload.partial);
+                    upload.partial.delete();
+                }
+            } catch (IOException ex) {
+                Log.log(Log.INFORMATION, "Unable to remove \"{0}\": {1}",
+                        new Object[] { upload.partial, ex });
+            }
+        }
+    }
+
+    /**
+     * Stops the periodic sweep.  Partial files are left in place, to be
+     * resumed or discarded later.
+     */
+    public void destroy() {
+        sweeper.cancel();
+        uploads.clear();
+    }
+
+    public String toString() {
+        return "PartialUploads[expiry=" + expiry + ",active=" +
+                uploads.size() + "]";
+    }
+
+    private static class Upload {
+
+        private final SmbFile partial;
+
+        private final long touched;
+
+        public Upload(SmbFile partial) {
+            this.partial = partial;
+            this.touched = System.currentTimeMillis();
+        }
+
+    }
+
+}
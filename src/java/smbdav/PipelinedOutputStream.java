@@ -0,0 +1,284 @@
+/* Davenport WebDAV SMB Gateway
+ * Copyright (C) 2004  Eric Glass
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+package smbdav;
+
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.IOException;
+import java.io.OutputStream;
+
+import java.util.LinkedList;
+
+import java.util.concurrent.Executor;
+
+/**
+ * Writes to an underlying (SMB) stream behind the producer.  Data is
+ * collected into fixed-size chunks; each full chunk is queued and written
+ * by a task on the supplied executor, so the producer can continue
+ * receiving data from the client while earlier data is being written to
+ * the server.
+ * <p>
+ * The queue is bounded: once the configured number of chunks are waiting,
+ * the producer blocks until the oldest has been written.  Chunk buffers
+ * are drawn from a {@link BufferPool}, so the memory held by all
+ * pipelines is limited by the pool's budget.  The writer task only runs
+ * while chunks are queued; no thread is held while waiting on the
+ * producer.
+ * <p>
+ * Errors from the underlying stream are reported by the next call to
+ * <code>write</code>, <code>flush</code> or <code>close</code>.
+ *
+ * @author Eric Glass
+ */
+public class PipelinedOutputStream extends OutputStream {
+
+    private final OutputStream output;
+
+    private final int chunkSize;
+
+    private final int maximumDepth;
+
+    private final Executor executor;
+
+    private final BufferPool bufferPool;
+
+    private final LinkedList queue = new LinkedList();
+
+    private final Runnable writer = new Writer();
+
+    private byte[] current;
+
+    private int position;
+
+    private boolean writing;
+
+    private IOException failure;
+
+    private boolean closed;
+
+    /**
+     * Creates a <code>PipelinedOutputStream</code>.
+     *
+     * @param output The stream to which data is written.
+     * @param chunkSize The size of each write issued against the
+     * underlying stream.
+     * @param maximumDepth The largest number of chunks queued at once.
+     * @param executor The executor on which writes are performed.
+     * @param bufferPool The pool from which chunk buffers are obtained.
+     */
+    public PipelinedOutputStream(OutputStream output, int chunkSize,
+            int maximumDepth, Executor executor, BufferPool bufferPool) {
+        this.output = output;
+        this.chunkSize = chunkSize;
+        this.maximumDepth = Math.max(maximumDepth, 1);
+        this.executor = executor;
+        this.bufferPool = bufferPool;
+    }
+
+    public void write(int b) throws IOException {
+        write(new byte[] { (byte) b }, 0, 1);
+    }
+
+    public void write(byte[] b, int offset, int length) throws IOException {
+        if (closed) throw new IOException("Stream closed.");
+        while (length > 0) {
+            if (current == null) {
+                checkFailure();
+                current = bufferPool.borrow(chunkSize);
+                position = 0;
+            }
+            int count = Math.min(length, chunkSize - position);
+            System.arraycopy(b, offset, current, position, count);
+            position += count;
+            offset += count;
+            length -= count;
+            if (position == chunkSize) enqueue();
+        }
+    }
+
+    /**
+     * Reads the specified stream to its end, receiving directly into the
+     * chunk buffers.
+     *
+     * @param input The stream from which data is read.
+     * @return A <code>long</code> containing the number of bytes read.
+     * @throws IOException If an IO error occurs.
+     */
+    public long readFrom(InputStream input) throws IOException {
+        if (closed) throw new IOException("Stream closed.");
+        long total = 0;
+        while (true) {
+            if (current == null) {
+                checkFailure();
+                current = bufferPool.borrow(chunkSize);
+                position = 0;
+            }
+            int count = input.read(current, position, chunkSize - position);
+            if (count == -1) return total;
+            position += count;
+            total += count;
+            if (position == chunkSize) enqueue();
+        }
+    }
+
+    /**
+     * Waits until all queued data has been written to the underlying
+     * stream, and flushes it.  Data in a partially filled chunk is written
+     * as well.
+     *
+     * @throws IOException If an IO error occurs.
+     */
+    public void flush() throws IOException {
+        if (closed) throw new IOException("Stream closed.");
+        if (current != null && position > 0) enqueue();
+        drain();
+        output.flush();
+    }
+
+    /**
+     * Writes all remaining data and closes the underlying stream.  If
+     * writing failed, the underlying stream is closed and the error is
+     * thrown.
+     *
+     * @throws IOException If an IO error occurs.
+     */
+    public void close() throws IOException {
+        if (closed) return;
+        try {
+            if (current != null && position > 0) enqueue();
+            drain();
+        } finally {
+            closed = true;
+            abandon();
+            output.close();
+        }
+    }
+
+    private void enqueue() throws IOException {
+        byte[] chunk = current;
+        int length = position;
+        current = null;
+        position = 0;
+        synchronized (this) {
+            try {
+                while (failure == null && queue.size() >= maximumDepth) {
+                    wait();
+                }
+            } catch (InterruptedException ex) {
+                bufferPool.release(chunk);
+                throw new InterruptedIOException();
+            }
+            if (failure != null) {
+                bufferPool.release(chunk);
+                throw failure;
+            }
+            queue.addLast(new Chunk(chunk, length));
+            if (writing) return;
+            writing = true;
+        }
+        try {
+            executor.execute(writer);
+        } catch (RuntimeException ex) {
+            synchronized (this) {
+                writing = false;
+            }
+            throw ex;
+        }
+    }
+
+    private synchronized void drain() throws IOException {
+        try {
+            while (failure == null && (writing || !queue.isEmpty())) wait();
+        } catch (InterruptedException ex) {
+            throw new InterruptedIOException();
+        }
+        checkFailure();
+    }
+
+    private synchronized void checkFailure() throws IOException {
+        if (failure != null) throw failure;
+    }
+
+    private synchronized void abandon() {
+        if (current != null) {
+            bufferPool.release(current);
+            current = null;
+        }
+        // a chunk being written is released by the writer.
+        int keep = writing ? 1 : 0;
+        while (queue.size() > keep) {
+            bufferPool.release(((Chunk) queue.removeLast()).data);
+        }
+        if (failure == null) failure = new IOException("Stream closed.");
+        notifyAll();
+    }
+
+    private static class Chunk {
+
+        private final byte[] data;
+
+        private final int length;
+
+        public Chunk(byte[] data, int length) {
+            this.data = data;
+            this.length = length;
+        }
+
+    }
+
+    private class Writer implements Runnable {
+
+        public void run() {
+            while (true) {
+                Chunk chunk;
+                synchronized (PipelinedOutputStream.this) {
+                    while (failure != null && !queue.isEmpty()) {
+                        bufferPool.release(((Chunk) queue.removeFirst()).data);
+                    }
+                    if (queue.isEmpty()) {
+                        writing = false;
+                        PipelinedOutputStream.this.notifyAll();
+                        return;
+                    }
+                    chunk = (Chunk) queue.getFirst();
+                }
+                IOException error = null;
+                try {
+                    output.write(chunk.data, 0, chunk.length);
+                } catch (IOException ex) {
+                    error = ex;
+                } catch (RuntimeException ex) {
+                    error = new IOException(String.valueOf(ex));
+                }
+                synchronized (PipelinedOutputStream.this) {
+                    queue.removeFirst();
+                    bufferPool.release(chunk.data);
+                    if (error != null && failure == null) {
+                        Log.log(Log.DEBUG, "Pipelined write failed: {0}",
+                                error);
+                        failure = error;
+                    }
+                    PipelinedOutputStream.this.notifyAll();
+                }
+            }
+        }
+
+    }
+
+}
@@ -20,12 +20,23 @@ package smbdav;
 
 import java.io.IOException;
 
+import java.util.Enumeration;
+
 import jcifs.smb.SmbException;
 import jcifs.smb.SmbFile;
 import jcifs.smb.SmbFileFilter;
 
+import org.w3c.dom.Attr;
 import org.w3c.dom.Document;
 import org.w3c.dom.Element;
+import org.w3c.dom.NamedNodeMap;
+import org.w3c.dom.Node;
+
+import org.xml.sax.ContentHandler;
+import org.xml.sax.SAXException;
+
+import org.xml.sax.helpers.AttributesImpl;
+import org.xml.sax.helpers.NamespaceSupport;
 
 /**
  * This class directs a <code>PropertiesBuilder</code> in the creation
@@ -138,6 +149,40 @@ public class PropertiesDirector {
         return document;
     }
 
+    /**
+     * Writes the PROPFIND result for the specified resource, containing
+     * the names and values of all supported properties, to the given SAX
+     * handler.  The response for each resource is sent to the handler
+     * (and discarded) before the next resource is examined, so the
+     * complete result is never held in memory.
+     *
+     * @param file The resource whose properties are to be retrieved.
+     * @param href The HTTP URL by which the resource was accessed.
+     * @param depth The depth to which the request is applied.  One of
+     * <code>SmbDAVUtilities.RESOURCE_ONLY_DEPTH</code>
+     * (applied to the resource only),
+     * <code>SmbDAVUtilities.CHILDREN_DEPTH</code>
+     * (applied to the resource and its immediate children), or
+     * <code>SmbDAVUtilities.INFINITE_DEPTH</code>
+     * (the resource and all of its progeny).
+     * @param handler The handler receiving the PROPFIND result.
+     * @throws IOException If an IO error occurs while retrieving the
+     * properties.
+     * @throws SAXException If the handler reports an error.
+     */
+    public void writeAllProperties(SmbFile file, String href, int depth,
+            ContentHandler handler) throws IOException, SAXException {
+        if (depth == SmbDAVUtilities.INFINITE_DEPTH) depth = INFINITY;
+        Document document = getPropertiesBuilder().createDocument();
+        Element multistatus = document.getDocumentElement();
+        NamespaceSupport namespaces = new NamespaceSupport();
+        handler.startDocument();
+        startElement(multistatus, namespaces, handler);
+        writeAllProperties(document, file, href, depth, namespaces, handler);
+        endElement(multistatus, namespaces, handler);
+        handler.endDocument();
+    }
+
     /**
      * Returns the PROPFIND result XML document for the specified resource
      * containing the values of the specifed properties.
@@ -238,6 +283,125 @@ public class PropertiesDirector {
         }
     }
 
+    private void writeAllProperties(Document document, SmbFile file,
+            String href, int depth, NamespaceSupport namespaces,
+                    ContentHandler handler) throws IOException, SAXException {
+        getPropertiesBuilder().addAllProps(document, file, href);
+        Element multistatus = document.getDocumentElement();
+        Node response;
+        while ((response = multistatus.getFirstChild()) != null) {
+            write(response, namespaces, handler);
+            multistatus.removeChild(response);
+        }
+        if (depth > 0 && !file.isFile()) {
+            SmbFile[] children = null;
+            SmbFileFilter filter = getFilter();
+            try {
+                children = (filter != null) ? file.listFiles(filter) :
+                        file.listFiles();
+            } catch (SmbException ex) { }
+            if (children == null) return;
+            int count = children.length;
+            if (count == 0) return;
+            if (!href.endsWith("/")) href += "/";
+            --depth;
+            if (file.getType() == SmbFile.TYPE_WORKGROUP &&
+                    !"smb://".equals(file.toString())) {
+                int index = href.lastIndexOf(file.getName());
+                if (index != -1) href = href.substring(0, index);
+            }
+            for (int i = 0; i < count; i++) {
+                writeAllProperties(document, children[i],
+                        href + escape(children[i].getName()), depth,
+                                namespaces, handler);
+                children[i] = null;
+            }
+        }
+    }
+
+    private void write(Node node, NamespaceSupport namespaces,
+            ContentHandler handler) throws SAXException {
+        switch (node.getNodeType()) {
+        case Node.ELEMENT_NODE:
+            startElement((Element) node, namespaces, handler);
+            for (Node child = node.getFirstChild(); child != null;
+                    child = child.getNextSibling()) {
+                write(child, namespaces, handler);
+            }
+            endElement((Element) node, namespaces, handler);
+            break;
+        case Node.TEXT_NODE:
+        case Node.CDATA_SECTION_NODE:
+            char[] data = node.getNodeValue().toCharArray();
+            handler.characters(data, 0, data.length);
+            break;
+        default:
+        }
+    }
+
+    private void startElement(Element element, NamespaceSupport namespaces,
+            ContentHandler handler) throws SAXException {
+        namespaces.pushContext();
+        AttributesImpl attributes = new AttributesImpl();
+        NamedNodeMap map = element.getAttributes();
+        int count = map.getLength();
+        for (int i = 0; i < count; i++) {
+            Attr attribute = (Attr) map.item(i);
+            String name = attribute.getName();
+            if (name.equals("xmlns")) {
+                declare("", attribute.getValue(), namespaces, handler);
+            } else if (name.startsWith("xmlns:")) {
+                declare(name.substring(6), attribute.getValue(), namespaces,
+                        handler);
+            }
+        }
+        for (int i = 0; i < count; i++) {
+            Attr attribute = (Attr) map.item(i);
+            String name = attribute.getName();
+            if (name.equals("xmlns") || name.startsWith("xmlns:")) continue;
+            String namespace = attribute.getNamespaceURI();
+            if (namespace != null) {
+                declare(attribute.getPrefix(), namespace, namespaces,
+                        handler);
+            }
+            attributes.addAttribute((namespace != null) ? namespace : "",
+                    localName(attribute), name, "CDATA",
+                            attribute.getValue());
+        }
+        String namespace = element.getNamespaceURI();
+        declare(element.getPrefix(), namespace, namespaces, handler);
+        handler.startElement((namespace != null) ? namespace : "",
+                localName(element), element.getNodeName(), attributes);
+    }
+
+    private void endElement(Element element, NamespaceSupport namespaces,
+            ContentHandler handler) throws SAXException {
+        String namespace = element.getNamespaceURI();
+        handler.endElement((namespace != null) ? namespace : "",
+                localName(element), element.getNodeName());
+        Enumeration prefixes = namespaces.getDeclaredPrefixes();
+        while (prefixes.hasMoreElements()) {
+            handler.endPrefixMapping((String) prefixes.nextElement());
+        }
+        namespaces.popContext();
+    }
+
+    private void declare(String prefix, String namespace,
+            NamespaceSupport namespaces, ContentHandler handler)
+                    throws SAXException {
+        if (prefix == null) prefix = "";
+        if (namespace == null) namespace = "";
+        String current = namespaces.getURI(prefix);
+        if (namespace.equals((current != null) ? current : "")) return;
+        namespaces.declarePrefix(prefix, namespace);
+        handler.startPrefixMapping(prefix, namespace);
+    }
+
+    private String localName(Node node) {
+        String name = node.getLocalName();
+        return (name != null) ? name : node.getNodeName();
+    }
+
     private void addProperties(Document document, SmbFile file, String href,
             Element[] props, int depth) throws IOException {
         getPropertiesBuilder().addProps(document, file, href, props);
@@ -265,7 +429,7 @@ public class PropertiesDirector {
         }
     }
 
-    private String escape(String name) throws IOException {
+    static String escape(String name) throws IOException {
         boolean dir = name.endsWith("/");
         if (dir) name = name.substring(0, name.length() - 1);
         StringBuffer buffer = new StringBuffer();
@@ -0,0 +1,327 @@
+/* Davenport WebDAV SMB Gateway
+ * Copyright (C) 2004  Eric Glass
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+package smbdav;
+
+import java.io.InputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+
+import java.util.Iterator;
+import java.util.LinkedList;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+
+import jcifs.smb.SmbFile;
+import jcifs.smb.SmbRandomAccessFile;
+
+/**
+ * Reads a region of an SMB file ahead of the consumer.  The region is
+ * divided into fixed-size chunks, each of which is read by a task on the
+ * supplied executor through its own file handle; this allows several SMB
+ * reads to be outstanding while the consumer is writing previously read
+ * data to the client.
+ * <p>
+ * The number of chunks read ahead starts at one and doubles (up to the
+ * configured maximum) each time the consumer finds the next chunk still in
+ * flight, so a sequential reader that is outpacing the server is given a
+ * progressively wider window.  Chunk buffers are drawn from a
+ * {@link BufferPool}; the window is not widened beyond what the pool's
+ * budget allows without waiting.
+ *
+ * @author Eric Glass
+ */
+public class ReadAheadInputStream extends InputStream {
+
+    private final SmbFile file;
+
+    private final long end;
+
+    private final int chunkSize;
+
+    private final int maximumDepth;
+
+    private final Executor executor;
+
+    private final BufferPool bufferPool;
+
+    private final LinkedList pending = new LinkedList();
+
+    private final LinkedList handles = new LinkedList();
+
+    private long nextOffset;
+
+    private int depth = 1;
+
+    private Chunk current;
+
+    private int position;
+
+    private volatile boolean closed;
+
+    /**
+     * Creates a <code>ReadAheadInputStream</code> over the specified region
+     * of a file.
+     *
+     * @param file The file to be read.
+     * @param offset The offset of the first byte to be read.
+     * @param length The number of bytes to be read.
+     * @param chunkSize The size of each read issued against the server.
+     * @param maximumDepth The largest number of reads that will be
+     * outstanding at once.
+     * @param executor The executor on which reads are performed.
+     * @param bufferPool The pool from which chunk buffers are obtained.
+     */
+    public ReadAheadInputStream(SmbFile file, long offset, long length,
+            int chunkSize, int maximumDepth, Executor executor,
+                    BufferPool bufferPool) {
+        this.file = file;
+        this.nextOffset = offset;
+        this.end = offset + length;
+        this.chunkSize = chunkSize;
+        this.maximumDepth = Math.max(maximumDepth, 1);
+        this.executor = executor;
+        this.bufferPool = bufferPool;
+    }
+
+    public int read() throws IOException {
+        byte[] b = new byte[1];
+        return (read(b, 0, 1) == -1) ? -1 : (b[0] & 0xff);
+    }
+
+    public int read(byte[] b, int offset, int length) throws IOException {
+        if (closed) throw new IOException("Stream closed.");
+        if (length == 0) return 0;
+        if (current == null || position >= current.length) {
+            if (!nextChunk()) return -1;
+        }
+        int count = Math.min(length, current.length - position);
+        System.arraycopy(current.data, position, b, offset, count);
+        position += count;
+        return count;
+    }
+
+    /**
+     * Writes the remainder of the region to the specified stream directly
+     * from the read-ahead buffers.
+     *
+     * @param output The stream to which the data is written.
+     * @return A <code>long</code> containing the number of bytes written.
+     * @throws IOException If an IO error occurs.
+     */
+    public long writeTo(OutputStream output) throws IOException {
+        if (closed) throw new IOException("Stream closed.");
+        long total = 0;
+        while ((current != null && position < current.length) ||
+                nextChunk()) {
+            int count = current.length - position;
+            output.write(current.data, position, count);
+            position += count;
+            total += count;
+        }
+        return total;
+    }
+
+    /**
+     * Starts reading the region before it is requested.  This never waits
+     * for a buffer; if none is available, reading starts on the first
+     * request for data instead.
+     *
+     * @throws IOException If an IO error occurs.
+     */
+    public void prefetch() throws IOException {
+        if (closed || current != null || !pending.isEmpty()) return;
+        fill(false);
+    }
+
+    public int available() throws IOException {
+        return (current == null) ? 0 : current.length - position;
+    }
+
+    public void close() throws IOException {
+        if (closed) return;
+        closed = true;
+        discard();
+        synchronized (handles) {
+            while (!handles.isEmpty()) {
+                closeHandle((SmbRandomAccessFile) handles.removeFirst());
+            }
+        }
+    }
+
+    private void discard() {
+        Iterator iterator = pending.iterator();
+        while (iterator.hasNext()) {
+            Chunk chunk = (Chunk) iterator.next();
+            chunk.task.cancel(false);
+            chunk.abandon();
+        }
+        pending.clear();
+        if (current != null) {
+            bufferPool.release(current.data);
+            current = null;
+        }
+    }
+
+    private boolean nextChunk() throws IOException {
+        if (current != null) {
+            bufferPool.release(current.data);
+            current = null;
+        }
+        fill(true);
+        if (pending.isEmpty()) return false;
+        Chunk chunk = (Chunk) pending.removeFirst();
+        boolean stalled = !chunk.task.isDone();
+        try {
+            current = (Chunk) chunk.task.get();
+        } catch (InterruptedException ex) {
+            chunk.abandon();
+            throw new InterruptedIOException();
+        } catch (ExecutionException ex) {
+            bufferPool.release(chunk.data);
+            Throwable cause = ex.getCause();
+            if (cause instanceof IOException) throw (IOException) cause;
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new IOException(String.valueOf(cause));
+        }
+        position = 0;
+        if (stalled && depth < maximumDepth) {
+            depth = Math.min(depth * 2, maximumDepth);
+            Log.log(Log.DEBUG, "Read-ahead window for \"{0}\" is now {1}.",
+                    new Object[] { file, new Integer(depth) });
+        }
+        if (current.length == 0) {
+            // file was truncated underneath us.
+            discard();
+            nextOffset = end;
+            return false;
+        }
+        fill(true);
+        return true;
+    }
+
+    private void fill(boolean wait) throws IOException {
+        while (pending.size() < depth && nextOffset < end) {
+            int size = (int) Math.min(chunkSize, end - nextOffset);
+            // only wait for a buffer if nothing else is outstanding.
+            byte[] buffer = (wait && pending.isEmpty()) ?
+                    bufferPool.borrow(size) : bufferPool.tryBorrow(size);
+            if (buffer == null) break;
+            Chunk chunk = new Chunk(nextOffset, buffer, size);
+            nextOffset += size;
+            pending.addLast(chunk);
+            executor.execute(chunk.task);
+        }
+    }
+
+    private SmbRandomAccessFile borrowHandle() throws IOException {
+        synchronized (handles) {
+            if (!handles.isEmpty()) {
+                return (SmbRandomAccessFile) handles.removeFirst();
+            }
+        }
+        return new SmbRandomAccessFile(file, "r");
+    }
+
+    private void returnHandle(SmbRandomAccessFile handle) {
+        synchronized (handles) {
+            if (!closed) {
+                handles.addLast(handle);
+                return;
+            }
+        }
+        closeHandle(handle);
+    }
+
+    private void closeHandle(SmbRandomAccessFile handle) {
+        try {
+            handle.close();
+        } catch (IOException ex) {
+            Log.log(Log.DEBUG, "Unable to close read-ahead handle: {0}", ex);
+        }
+    }
+
+    private class Chunk implements Callable {
+
+        private final FutureTask task = new FutureTask(this);
+
+        private final long offset;
+
+        private final byte[] data;
+
+        private final int size;
+
+        private int length;
+
+        private boolean running;
+
+        private boolean abandoned;
+
+        public Chunk(long offset, byte[] data, int size) {
+            this.offset = offset;
+            this.data = data;
+            this.size = size;
+        }
+
+        public Object call() throws IOException {
+            synchronized (this) {
+                if (abandoned) return this;
+                running = true;
+            }
+            try {
+                SmbRandomAccessFile handle = borrowHandle();
+                try {
+                    handle.seek(offset);
+                    int count;
+                    while (length < size && (count = handle.read(data,
+                            length, size - length)) != -1) {
+                        length += count;
+                    }
+                } catch (IOException ex) {
+                    closeHandle(handle);
+                    throw ex;
+                }
+                returnHandle(handle);
+                return this;
+            } finally {
+                synchronized (this) {
+                    running = false;
+                    if (abandoned) bufferPool.release(data);
+                }
+            }
+        }
+
+        /**
+         * Gives up on this chunk; the buffer is returned to the pool now if
+         * no read is in progress, otherwise when the read completes.
+         */
+        public synchronized void abandon() {
+            if (abandoned) return;
+            abandoned = true;
+            if (!running) bufferPool.release(data);
+        }
+
+    }
+
+}
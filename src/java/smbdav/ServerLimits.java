@@ -0,0 +1,101 @@
+/* Davenport WebDAV SMB Gateway
+ * Copyright (C) 2004  Eric Glass
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+package smbdav;
+
+import java.util.Map;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Limits the number of operations performed concurrently against each
+ * SMB server.  Each server has its own limit (the default limit, unless
+ * one has been configured for that server), shared by all requests.
+ *
+ * @author Eric Glass
+ */
+public class ServerLimits {
+
+    private final int defaultLimit;
+
+    private final Map limits = new ConcurrentHashMap();
+
+    private final Map semaphores = new ConcurrentHashMap();
+
+    /**
+     * Creates a <code>ServerLimits</code>.
+     *
+     * @param defaultLimit The limit applied to servers which have no limit
+     * of their own.
+     */
+    public ServerLimits(int defaultLimit) {
+        this.defaultLimit = Math.max(defaultLimit, 1);
+    }
+
+    /**
+     * Sets the limit for the specified server.  This must be called before
+     * operations against the server begin.
+     *
+     * @param server The server name, as given in SMB URLs.
+     * @param limit The largest number of concurrent operations.
+     */
+    public void setLimit(String server, int limit) {
+        limits.put(server.toLowerCase(), new Integer(Math.max(limit, 1)));
+    }
+
+    /**
+     * Returns the limit for the specified server.
+     *
+     * @param server The server name.
+     * @return An <code>int</code> containing the largest number of
+     * concurrent operations.
+     */
+    public int getLimit(String server) {
+        Integer limit = (Integer) limits.get(server.toLowerCase());
+        return (limit != null) ? limit.intValue() : defaultLimit;
+    }
+
+    /**
+     * Returns the semaphore controlling operations against the specified
+     * server.  A permit is held for the duration of each operation.
+     *
+     * @param server The server name.
+     * @return The server's <code>Semaphore</code>.
+     */
+    public Semaphore getSemaphore(String server) {
+        String key = server.toLowerCase();
+        Semaphore semaphore = (Semaphore) semaphores.get(key);
+        if (semaphore == null) {
+            synchronized (semaphores) {
+                semaphore = (Semaphore) semaphores.get(key);
+                if (semaphore == null) {
+                    semaphore = new Semaphore(getLimit(key));
+                    semaphores.put(key, semaphore);
+                }
+            }
+        }
+        return semaphore;
+    }
+
+    public String toString() {
+        return "ServerLimits[default=" + defaultLimit + ",limits=" + limits +
+                "]";
+    }
+
+}
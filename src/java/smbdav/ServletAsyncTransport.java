@@ -0,0 +1,520 @@
+/* Davenport WebDAV SMB Gateway
+ * Copyright (C) 2004  Eric Glass
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+package smbdav;
+
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.IOException;
+import java.io.OutputStream;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.ReadListener;
+import javax.servlet.ServletConfig;
+import javax.servlet.ServletException;
+import javax.servlet.ServletInputStream;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * An <code>AsyncTransport</code> built on the Servlet 3.1 asynchronous
+ * I/O API.  Client I/O is driven by <code>WriteListener</code> and
+ * <code>ReadListener</code> callbacks; the (blocking) SMB side of each
+ * transfer is performed on a dedicated, bounded pool of threads.  Neither
+ * holds a thread while waiting on a slow client.
+ * <p>
+ * This class requires a Servlet 3.1 container, and the Davenport servlet
+ * (along with any filters in front of it) must be deployed with
+ * asynchronous support enabled.
+ *
+ * @author Eric Glass
+ */
+public class ServletAsyncTransport implements AsyncTransport {
+
+    private ExecutorService executor;
+
+    private BufferPool bufferPool;
+
+    private long timeout;
+
+    private int bufferSize;
+
+    public void init(ServletConfig config) throws ServletException {
+        String asyncThreads = config.getInitParameter("asyncTransfers.threads");
+        int threads = (asyncThreads != null) ?
+                Integer.parseInt(asyncThreads) : 16;
+        String timeout = config.getInitParameter("asyncTransfers.timeout");
+        this.timeout = (timeout != null) ? Long.parseLong(timeout) :
+                3600000l;
+        boolean virtual = Boolean.valueOf(config.getInitParameter(
+                "virtualThreads")).booleanValue();
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads,
+                60l, TimeUnit.SECONDS, new LinkedBlockingQueue(),
+                        new DavenportThreadFactory("Davenport-Async-",
+                                virtual));
+        executor.allowCoreThreadTimeOut(true);
+        this.executor = executor;
+        bufferPool = (BufferPool) config.getServletContext().getAttribute(
+                Davenport.BUFFER_POOL);
+        if (bufferPool == null) bufferPool = new BufferPool(Long.MAX_VALUE,
+                65536);
+        bufferSize = Math.min(65536, bufferPool.getMaximumBufferSize());
+        Log.log(Log.DEBUG, "Asynchronous transfers enabled with {0} threads.",
+                new Integer(threads));
+    }
+
+    public void destroy() {
+        if (executor != null) {
+            executor.shutdownNow();
+            executor = null;
+        }
+        bufferPool = null;
+    }
+
+    public boolean isAvailable(HttpServletRequest request) {
+        return request.isAsyncSupported() && !request.isAsyncStarted();
+    }
+
+    public void send(HttpServletRequest request, HttpServletResponse response,
+            InputStream input) {
+        Sender sender = null;
+        try {
+            sender = new Sender(request.startAsync(), input);
+            sender.start();
+        } catch (Throwable throwable) {
+            if (sender != null) {
+                sender.finish(throwable);
+            } else {
+                close(input);
+                Log.log(Log.WARNING, "Unable to start async transfer: {0}",
+                        throwable);
+            }
+        }
+    }
+
+    public void receive(HttpServletRequest request,
+            HttpServletResponse response, OutputStream output,
+                    Runnable completion) {
+        Receiver receiver = null;
+        try {
+            receiver = new Receiver(request.startAsync(), output, completion);
+            receiver.start();
+        } catch (Throwable throwable) {
+            if (receiver != null) {
+                receiver.finish(throwable);
+            } else {
+                close(output);
+                Log.log(Log.WARNING, "Unable to start async transfer: {0}",
+                        throwable);
+            }
+        }
+    }
+
+    public void dispatch(HttpServletRequest request,
+            HttpServletResponse response, Executor executor,
+                    final Callable task) {
+        final AsyncContext context = request.startAsync();
+        context.setTimeout(0);
+        try {
+            executor.execute(new Runnable() {
+                public void run() {
+                    try {
+                        task.call();
+                    } catch (Throwable throwable) {
+                        Log.log(Log.INFORMATION,
+                                "Dispatched request failed: {0}", throwable);
+                        HttpServletResponse response =
+                                (HttpServletResponse) context.getResponse();
+                        if (!response.isCommitted()) {
+                            try {
+                                response.sendError(HttpServletResponse.
+                                        SC_INTERNAL_SERVER_ERROR);
+                            } catch (Exception ignore) { }
+                        }
+                    } finally {
+                        try {
+                            context.complete();
+                        } catch (IllegalStateException ignore) { }
+                    }
+                }
+            });
+        } catch (RuntimeException ex) {
+            context.complete();
+            throw ex;
+        }
+    }
+
+    private static void close(InputStream input) {
+        try {
+            input.close();
+        } catch (IOException ex) {
+            Log.log(Log.DEBUG, "Unable to close stream: {0}", ex);
+        }
+    }
+
+    private static void close(OutputStream output) {
+        try {
+            output.close();
+        } catch (IOException ex) {
+            Log.log(Log.DEBUG, "Unable to close stream: {0}", ex);
+        }
+    }
+
+    /**
+     * Common state for a transfer.  SMB I/O is performed by running the
+     * transfer on the executor; at most one of the SMB side and the
+     * client side is active at any time, so the buffer is never shared.
+     * The buffer is held only while data is moving through it, and is
+     * returned to the pool while the transfer waits on its client; it is
+     * never waited for on a container thread.
+     */
+    private abstract class Transfer implements Runnable, AsyncListener {
+
+        protected final AsyncContext context;
+
+        protected volatile byte[] buffer;
+
+        protected volatile int count;
+
+        private boolean busy;
+
+        private boolean finished;
+
+        protected Transfer(AsyncContext context) {
+            this.context = context;
+            context.setTimeout(timeout);
+            context.addListener(this);
+        }
+
+        public void run() {
+            try {
+                transfer();
+            } catch (Throwable throwable) {
+                idle();
+                finish(throwable);
+                return;
+            }
+            if (idle()) return;
+            try {
+                resume();
+            } catch (Throwable throwable) {
+                finish(throwable);
+            }
+        }
+
+        public void onComplete(AsyncEvent event) { }
+
+        public void onStartAsync(AsyncEvent event) { }
+
+        public void onTimeout(AsyncEvent event) {
+            finish(new InterruptedIOException("Transfer timed out."));
+        }
+
+        public void onError(AsyncEvent event) {
+            finish(event.getThrowable());
+        }
+
+        public void onError(Throwable throwable) {
+            finish(throwable);
+        }
+
+        /**
+         * Hands the buffer to the executor for the SMB side of the
+         * transfer.
+         */
+        protected synchronized void dispatch() {
+            busy = true;
+            executor.execute(this);
+        }
+
+        /**
+         * Releases the resources held by the transfer and completes the
+         * request.  If SMB I/O is in progress, the buffer is released when
+         * it finishes.
+         */
+        protected void finish(Throwable throwable) {
+            synchronized (this) {
+                if (finished) return;
+                finished = true;
+                if (!busy) releaseBuffer();
+            }
+            cleanup(throwable == null);
+            if (throwable != null) {
+                Log.log(Log.INFORMATION, "Async transfer failed: {0}",
+                        throwable);
+                HttpServletResponse response =
+                        (HttpServletResponse) context.getResponse();
+                if (!response.isCommitted()) {
+                    try {
+                        response.sendError(
+                                HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+                    } catch (Exception ignore) { }
+                }
+            }
+            try {
+                context.complete();
+            } catch (IllegalStateException ignore) { }
+        }
+
+        protected synchronized boolean isFinished() {
+            return finished;
+        }
+
+        private synchronized boolean idle() {
+            busy = false;
+            if (finished) releaseBuffer();
+            return finished;
+        }
+
+        /**
+         * Obtains the buffer, if not already held.  Only executor threads
+         * may wait for a buffer.
+         *
+         * @return <code>false</code> if no buffer is available without
+         * waiting, or the transfer has finished.
+         */
+        protected boolean obtainBuffer(boolean wait)
+                throws InterruptedIOException {
+            if (buffer != null) return true;
+            byte[] obtained = wait ? bufferPool.borrow(bufferSize) :
+                    bufferPool.tryBorrow(bufferSize);
+            if (obtained == null) return false;
+            synchronized (this) {
+                if (!finished) {
+                    buffer = obtained;
+                    return true;
+                }
+            }
+            bufferPool.release(obtained);
+            return false;
+        }
+
+        /**
+         * Returns the buffer to the pool.
+         */
+        protected synchronized void releaseBuffer() {
+            if (buffer == null) return;
+            bufferPool.release(buffer);
+            buffer = null;
+        }
+
+        /**
+         * Performs the SMB side of the transfer on an executor thread.
+         */
+        protected abstract void transfer() throws IOException;
+
+        /**
+         * Continues the client side of the transfer after SMB I/O
+         * completes.
+         */
+        protected abstract void resume() throws IOException;
+
+        /**
+         * Closes the SMB stream.
+         */
+        protected abstract void cleanup(boolean success);
+
+    }
+
+    private class Sender extends Transfer implements WriteListener {
+
+        private final InputStream input;
+
+        private ServletOutputStream output;
+
+        private volatile boolean eof;
+
+        public Sender(AsyncContext context, InputStream input)
+                throws IOException {
+            super(context);
+            this.input = input;
+        }
+
+        public void start() throws IOException {
+            output = context.getResponse().getOutputStream();
+            output.setWriteListener(this);
+        }
+
+        public void onWritePossible() throws IOException {
+            while (!isFinished() && output.isReady()) {
+                if (count > 0) {
+                    output.write(buffer, 0, count);
+                    count = 0;
+                    continue;
+                }
+                // the container is done with the buffer once ready again.
+                releaseBuffer();
+                if (eof) {
+                    finish(null);
+                } else {
+                    dispatch();
+                }
+                return;
+            }
+        }
+
+        protected void transfer() throws IOException {
+            if (!obtainBuffer(true)) return;
+            int read = input.read(buffer);
+            if (read == -1) {
+                eof = true;
+            } else {
+                count = read;
+            }
+        }
+
+        protected void resume() throws IOException {
+            // the container only calls back after isReady() returns false.
+            onWritePossible();
+        }
+
+        protected void cleanup(boolean success) {
+            close(input);
+        }
+
+    }
+
+    private class Receiver extends Transfer implements ReadListener {
+
+        private final OutputStream output;
+
+        private final Runnable completion;
+
+        private ServletInputStream input;
+
+        private boolean writing;
+
+        private boolean acquiring;
+
+        private boolean allRead;
+
+        private boolean closing;
+
+        public Receiver(AsyncContext context, OutputStream output,
+                Runnable completion) throws IOException {
+            super(context);
+            this.output = output;
+            this.completion = completion;
+        }
+
+        public void start() throws IOException {
+            input = context.getRequest().getInputStream();
+            input.setReadListener(this);
+        }
+
+        public void onDataAvailable() throws IOException {
+            while (!isFinished() && input.isReady()) {
+                if (!obtainBuffer(false)) {
+                    if (isFinished()) return;
+                    // wait for a buffer on an executor thread instead.
+                    synchronized (this) {
+                        acquiring = true;
+                    }
+                    dispatch();
+                    return;
+                }
+                int read = input.read(buffer);
+                if (read == -1) break;
+                if (read > 0) {
+                    count = read;
+                    synchronized (this) {
+                        writing = true;
+                    }
+                    dispatch();
+                    return;
+                }
+            }
+            // nothing is held while waiting on the client.
+            releaseBuffer();
+        }
+
+        public void onAllDataRead() {
+            synchronized (this) {
+                allRead = true;
+                if (writing || acquiring || closing) return;
+                closing = true;
+            }
+            dispatch();
+        }
+
+        protected void transfer() throws IOException {
+            boolean close;
+            boolean acquire;
+            synchronized (this) {
+                close = closing;
+                acquire = acquiring;
+            }
+            if (close) {
+                output.close();
+                completion.run();
+                return;
+            }
+            if (acquire) {
+                obtainBuffer(true);
+                return;
+            }
+            output.write(buffer, 0, count);
+            count = 0;
+            releaseBuffer();
+        }
+
+        protected void resume() throws IOException {
+            // only the thread which sets closing dispatches the close.
+            boolean closed = false;
+            boolean close = false;
+            synchronized (this) {
+                if (acquiring || writing) {
+                    acquiring = false;
+                    writing = false;
+                    if (allRead) {
+                        closing = true;
+                        close = true;
+                    }
+                } else {
+                    closed = true;
+                }
+            }
+            if (closed) {
+                finish(null);
+            } else if (close) {
+                dispatch();
+            } else {
+                // the container only calls back after isReady() returns false.
+                onDataAvailable();
+            }
+        }
+
+        protected void cleanup(boolean success) {
+            if (!success) close(output);
+        }
+
+    }
+
+}
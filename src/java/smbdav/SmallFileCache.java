@@ -0,0 +1,294 @@
+/* Davenport WebDAV SMB Gateway
+ * Copyright (C) 2004  Eric Glass
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+package smbdav;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Holds the complete content of small files in memory.  Entries are keyed
+ * by the canonical path of the resource and validated against its entity
+ * tag.
+ * <p>
+ * The cache is a segmented LRU: new entries are placed in a probationary
+ * segment, and are promoted to a protected segment (holding up to 80% of
+ * the cache) when requested again.  Entries demoted from the protected
+ * segment return to the probationary segment, and eviction takes the least
+ * recently used probationary entry first.  This keeps files that are
+ * fetched repeatedly from being displaced by a scan of files fetched once.
+ * <p>
+ * Each entry records the users who are known to be able to read the file;
+ * other users must be verified against the server before being given the
+ * cached content.  Access rights can change without changing the file's
+ * entity tag, so each user is trusted only for a limited time after being
+ * verified.
+ *
+ * @author Eric Glass
+ */
+public class SmallFileCache {
+
+    private final Map probation = new LinkedHashMap(16, 0.75f, true);
+
+    private final Map protectedEntries = new LinkedHashMap(16, 0.75f, true);
+
+    private final long maximumSize;
+
+    private final long maximumProtectedSize;
+
+    private final int maximumEntrySize;
+
+    private final long readerExpiry;
+
+    private long probationSize;
+
+    private long protectedSize;
+
+    private long hits;
+
+    private long misses;
+
+    private long evictions;
+
+    /**
+     * Creates a <code>SmallFileCache</code>.
+     *
+     * @param maximumSize The largest number of bytes the cache will hold.
+     * @param maximumEntrySize The size of the largest file that will be
+     * cached.
+     * @param readerExpiry The time, in milliseconds, for which a user
+     * verified as able to read a file is trusted without verifying again.
+     * A value of 0 requires verification on every request.
+     */
+    public SmallFileCache(long maximumSize, int maximumEntrySize,
+            long readerExpiry) {
+        this.maximumSize = maximumSize;
+        this.maximumProtectedSize = maximumSize / 5 * 4;
+        this.maximumEntrySize = maximumEntrySize;
+        this.readerExpiry = readerExpiry;
+    }
+
+    /**
+     * Returns the size of the largest file that will be cached.
+     *
+     * @return An <code>int</code> containing the maximum entry size.
+     */
+    public int getMaximumEntrySize() {
+        return maximumEntrySize;
+    }
+
+    /**
+     * Returns the cached content of the specified resource, if present
+     * for the given entity tag.
+     *
+     * @param path The canonical path of the resource.
+     * @param etag The current entity tag of the resource.
+     * @return The cached <code>Entry</code>, or <code>null</code> if the
+     * resource is not cached.
+     */
+    public synchronized Entry get(String path, String etag) {
+        Entry entry = (Entry) protectedEntries.get(path);
+        if (entry == null) {
+            entry = (Entry) probation.remove(path);
+            if (entry != null) {
+                probationSize -= entry.data.length;
+                if (entry.etag.equals(etag)) {
+                    protectedEntries.put(path, entry);
+                    protectedSize += entry.data.length;
+                    demote();
+                } else {
+                    evictions++;
+                    entry = null;
+                }
+            }
+        } else if (!entry.etag.equals(etag)) {
+            protectedEntries.remove(path);
+            protectedSize -= entry.data.length;
+            evictions++;
+            entry = null;
+        }
+        if (entry == null) {
+            misses++;
+        } else {
+            hits++;
+        }
+        return entry;
+    }
+
+    /**
+     * Adds the content of a resource to the cache.
+     *
+     * @param path The canonical path of the resource.
+     * @param etag The current entity tag of the resource.
+     * @param data The content of the resource.
+     * @param user The name of the user who read the content.
+     */
+    public synchronized void put(String path, String etag, byte[] data,
+            String user) {
+        if (data.length > maximumEntrySize) return;
+        Entry previous = (Entry) protectedEntries.remove(path);
+        if (previous != null) protectedSize -= previous.data.length;
+        previous = (Entry) probation.remove(path);
+        if (previous != null) probationSize -= previous.data.length;
+        Entry entry = new Entry(etag, data, readerExpiry);
+        entry.addReader(user);
+        probation.put(path, entry);
+        probationSize += data.length;
+        evict();
+    }
+
+    /**
+     * Removes all entries from the cache.
+     */
+    public synchronized void clear() {
+        probation.clear();
+        protectedEntries.clear();
+        probationSize = 0;
+        protectedSize = 0;
+    }
+
+    /**
+     * Returns the number of requests satisfied from the cache.
+     *
+     * @return A <code>long</code> containing the number of hits.
+     */
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    /**
+     * Returns the number of requests not satisfied from the cache.
+     *
+     * @return A <code>long</code> containing the number of misses.
+     */
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    /**
+     * Returns the number of entries removed from the cache, either to
+     * make room or because the resource changed.
+     *
+     * @return A <code>long</code> containing the number of evictions.
+     */
+    public synchronized long getEvictions() {
+        return evictions;
+    }
+
+    public synchronized String toString() {
+        long lookups = hits + misses;
+        return "SmallFileCache[size=" + (probationSize + protectedSize) +
+                ",entries=" + (probation.size() + protectedEntries.size()) +
+                        ",hits=" + hits + ",misses=" + misses +
+                                ",hitRate=" + ((lookups == 0) ? 0 :
+                                        hits * 100 / lookups) + "%" +
+                                                ",evictions=" + evictions + "]";
+    }
+
+    private void demote() {
+        Iterator iterator = protectedEntries.entrySet().iterator();
+        while (protectedSize > maximumProtectedSize && iterator.hasNext()) {
+            Map.Entry oldest = (Map.Entry) iterator.next();
+            iterator.remove();
+            Entry entry = (Entry) oldest.getValue();
+            protectedSize -= entry.data.length;
+            probation.put(oldest.getKey(), entry);
+            probationSize += entry.data.length;
+        }
+        evict();
+    }
+
+    private void evict() {
+        Iterator iterator = probation.values().iterator();
+        while (probationSize + protectedSize > maximumSize &&
+                iterator.hasNext()) {
+            probationSize -= ((Entry) iterator.next()).data.length;
+            iterator.remove();
+            evictions++;
+        }
+        iterator = protectedEntries.values().iterator();
+        while (probationSize + protectedSize > maximumSize &&
+                iterator.hasNext()) {
+            protectedSize -= ((Entry) iterator.next()).data.length;
+            iterator.remove();
+            evictions++;
+        }
+    }
+
+    /**
+     * The cached content of a resource.
+     */
+    public static class Entry {
+
+        private final Map readers = new HashMap();
+
+        private final String etag;
+
+        private final byte[] data;
+
+        private final long readerExpiry;
+
+        private Entry(String etag, byte[] data, long readerExpiry) {
+            this.etag = etag;
+            this.data = data;
+            this.readerExpiry = readerExpiry;
+        }
+
+        /**
+         * Returns the cached content.  The returned array must not be
+         * modified.
+         *
+         * @return A <code>byte[]</code> containing the resource content.
+         */
+        public byte[] getData() {
+            return data;
+        }
+
+        /**
+         * Indicates whether the specified user is known to be able to
+         * read the resource, having been verified recently enough to be
+         * trusted.
+         *
+         * @param user The name of the user.
+         * @return <code>true</code> if the user has read the resource.
+         */
+        public synchronized boolean isReader(String user) {
+            Long expiry = (Long) readers.get(user);
+            if (expiry == null) return false;
+            if (expiry.longValue() > System.currentTimeMillis()) return true;
+            readers.remove(user);
+            return false;
+        }
+
+        /**
+         * Records that the specified user has just been verified as able to
+         * read the resource.
+         *
+         * @param user The name of the user.
+         */
+        public synchronized void addReader(String user) {
+            if (readerExpiry <= 0) return;
+            readers.put(user, new Long(System.currentTimeMillis() +
+                    readerExpiry));
+        }
+
+    }
+
+}
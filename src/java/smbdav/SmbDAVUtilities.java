@@ -40,6 +40,9 @@ import java.util.SimpleTimeZone;
 import java.util.StringTokenizer;
 import java.util.TimeZone;
 
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
 import jcifs.smb.SmbException;
 import jcifs.smb.SmbFile;
 
@@ -113,6 +116,19 @@ public class SmbDAVUtilities {
 
     private SmbDAVUtilities() { }
 
+    private static MessageDigest newDigest() {
+        try {
+            return (MessageDigest) digest.clone();
+        } catch (CloneNotSupportedException ex) {
+            try {
+                return MessageDigest.getInstance("MD5");
+            } catch (NoSuchAlgorithmException unavailable) {
+                throw new IllegalStateException(getResource(
+                        SmbDAVUtilities.class, "md5Unavailable", null, null));
+            }
+        }
+    }
+
     /**
      * Returns the specified resource string value.
      *
@@ -144,9 +160,8 @@ public class SmbDAVUtilities {
      * @return A <code>String</code> containing the formatted result.
      */
     public static String formatCreationDate(long creation) {
-        synchronized (CREATION_FORMAT) {
-            return CREATION_FORMAT.format(new Date(creation));
-        }
+        return ((DateFormat) CREATION_FORMAT.clone()).format(
+                new Date(creation));
     }
 
     /**
@@ -158,8 +173,82 @@ public class SmbDAVUtilities {
      * @return A <code>String</code> containing the formatted result.
      */
     public static String formatGetLastModified(long lastModified) {
-        synchronized (LAST_MODIFIED_FORMAT) {
-            return LAST_MODIFIED_FORMAT.format(new Date(lastModified));
+        return ((DateFormat) LAST_MODIFIED_FORMAT.clone()).format(
+                new Date(lastModified));
+    }
+
+    /**
+     * Sets the "Content-Length" header of the response.  Lengths which do
+     * not fit in an <code>int</code> (resources of 2 gigabytes or more)
+     * are sent as a header value, as
+     * <code>ServletResponse.setContentLength</code> cannot represent them.
+     *
+     * @param response The response whose content length is being set.
+     * @param length The length of the response content.
+     */
+    public static void setContentLength(HttpServletResponse response,
+            long length) {
+        if (length <= Integer.MAX_VALUE) {
+            response.setContentLength((int) length);
+        } else {
+            response.setHeader("Content-Length", String.valueOf(length));
+        }
+    }
+
+    /**
+     * Returns the length of the request content, as given by the
+     * "Content-Length" header.  Unlike
+     * <code>ServletRequest.getContentLength</code>, this reports lengths
+     * of 2 gigabytes or more.
+     *
+     * @param request The request whose content length is being retrieved.
+     * @return A <code>long</code> containing the content length, or -1 if
+     * the length is not known.
+     */
+    public static long getContentLength(HttpServletRequest request) {
+        String length = request.getHeader("Content-Length");
+        if (length != null) {
+            try {
+                return Long.parseLong(length.trim());
+            } catch (NumberFormatException ex) {
+                Log.log(Log.DEBUG, "Invalid Content-Length: {0}", length);
+            }
+        }
+        return request.getContentLength();
+    }
+
+    /**
+     * Parses a "Content-Range" header of the form
+     * "<code>bytes <i>first</i>-<i>last</i>/<i>length</i></code>" or
+     * "<code>bytes *&#47;<i>length</i></code>"; the length may be
+     * "<code>*</code>" if unknown.
+     *
+     * @param contentRange The value of the "Content-Range" header.
+     * @return A <code>long[]</code> containing the first and last byte
+     * positions and the length (-1 where not given), or <code>null</code>
+     * if the header is invalid.
+     */
+    public static long[] parseContentRange(String contentRange) {
+        contentRange = contentRange.trim();
+        if (!contentRange.toLowerCase().startsWith("bytes ")) return null;
+        contentRange = contentRange.substring(6).trim();
+        int slash = contentRange.indexOf('/');
+        if (slash == -1) return null;
+        try {
+            String spec = contentRange.substring(0, slash).trim();
+            String total = contentRange.substring(slash + 1).trim();
+            long[] range = new long[] { -1, -1,
+                    total.equals("*") ? -1 : Long.parseLong(total) };
+            if (spec.equals("*")) return range;
+            int dash = spec.indexOf('-');
+            if (dash == -1) return null;
+            range[0] = Long.parseLong(spec.substring(0, dash).trim());
+            range[1] = Long.parseLong(spec.substring(dash + 1).trim());
+            if (range[0] < 0 || range[1] < range[0]) return null;
+            if (range[2] != -1 && range[1] >= range[2]) return null;
+            return range;
+        } catch (NumberFormatException ex) {
+            return null;
         }
     }
 
@@ -178,10 +267,7 @@ public class SmbDAVUtilities {
             if (!file.isFile()) return null;
             String key = file.toString() + ":" +
                     Long.toHexString(file.lastModified());
-            byte[] hashBytes = null;
-            synchronized (digest) {
-                hashBytes = digest.digest(key.getBytes("UTF-8"));
-            }
+            byte[] hashBytes = newDigest().digest(key.getBytes("UTF-8"));
             StringBuffer hash = new StringBuffer();
             int count = hashBytes.length;
             for (int i = 0; i < count; i++) {
@@ -194,6 +280,50 @@ public class SmbDAVUtilities {
         }
     }
 
+    /**
+     * Replaces the target file with the source file by renaming.  An
+     * existing target is first renamed aside, and is renamed back if the
+     * source can't be moved into its place; the aside copy is deleted only
+     * once the source has replaced the target.  The source is never
+     * deleted, so on failure the caller may remove it once the target is
+     * known to have been restored (or never to have existed).
+     *
+     * @param source The file holding the new content.
+     * @param target The file to be replaced.
+     * @throws IOException If the source could not replace the target.
+     */
+    public static void replace(SmbFile source, SmbFile target)
+            throws IOException {
+        SmbFile aside = null;
+        if (target.exists()) {
+            aside = new SmbFile(target, "." + target.getName() + "." +
+                    Long.toString(System.currentTimeMillis(), 36) + ".old");
+            target.renameTo(aside);
+        }
+        try {
+            source.renameTo(target);
+        } catch (IOException ex) {
+            if (aside != null) {
+                try {
+                    aside.renameTo(target);
+                } catch (IOException restore) {
+                    Log.log(Log.WARNING, "Unable to restore \"{0}\" from " +
+                            "\"{1}\"; new content kept in \"{2}\": {3}",
+                                    new Object[] { target, aside, source,
+                                            restore });
+                }
+            }
+            throw ex;
+        }
+        if (aside == null) return;
+        try {
+            aside.delete();
+        } catch (IOException ex) {
+            Log.log(Log.INFORMATION, "Unable to remove \"{0}\": {1}",
+                    new Object[] { aside, ex });
+        }
+    }
+
     /**
      * Utility method to parse the "Depth" header.
      *
@@ -321,9 +451,7 @@ public class SmbDAVUtilities {
      */
     public static String generateUuid() {
         byte[] data = new byte[16];
-        synchronized (RANDOM) {
-            RANDOM.nextBytes(data);
-        }
+        RANDOM.nextBytes(data);
         data[8] = (byte) (data[8] & 0xbf | 0x80);
         data[6] = (byte) (data[6] & 0x4f | 0x40);
         StringBuffer buffer = new StringBuffer();
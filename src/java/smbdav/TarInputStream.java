@@ -0,0 +1,368 @@
+/* Davenport WebDAV SMB Gateway
+ * Copyright (C) 2004  Eric Glass
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+package smbdav;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Reads the entries of a tar archive from a stream.  Supports the POSIX
+ * ustar format, along with GNU long names and the "path", "size" and
+ * "mtime" records of pax extended headers.  After
+ * {@link #getNextEntry()} returns an entry, the stream's read methods
+ * return the content of that entry.
+ *
+ * @author Eric Glass
+ */
+public class TarInputStream extends InputStream {
+
+    private static final int BLOCK = 512;
+
+    private final InputStream in;
+
+    private final byte[] header = new byte[BLOCK];
+
+    private long remaining;
+
+    private long padding;
+
+    private boolean finished;
+
+    /**
+     * Creates a <code>TarInputStream</code> reading the given stream.
+     *
+     * @param in The stream containing the archive.
+     */
+    public TarInputStream(InputStream in) {
+        this.in = in;
+    }
+
+    /**
+     * Advances to the next entry in the archive, skipping any unread
+     * content of the current entry.
+     *
+     * @return The next <code>Entry</code>, or <code>null</code> if the end
+     * of the archive has been reached.
+     * @throws IOException If an IO error occurs, or the archive is
+     * malformed.
+     */
+    public Entry getNextEntry() throws IOException {
+        String longName = null;
+        String paxName = null;
+        long paxSize = -1;
+        long paxTime = -1;
+        while (true) {
+            skipFully(remaining + padding);
+            remaining = 0;
+            padding = 0;
+            if (finished || !readBlock(header)) {
+                finished = true;
+                return null;
+            }
+            if (isZero(header)) {
+                finished = true;
+                return null;
+            }
+            verifyChecksum();
+            char type = (char) header[156];
+            long size = parseNumber(124, 12);
+            remaining = size;
+            padding = (BLOCK - (size % BLOCK)) % BLOCK;
+            if (type == 'L') {
+                longName = trim(new String(readContent(size), "UTF-8"));
+                continue;
+            }
+            if (type == 'x') {
+                // record lengths count bytes, so values are decoded singly.
+                byte[] records = readContent(size);
+                int index = 0;
+                while (index < records.length) {
+                    int space = index;
+                    while (space < records.length && records[space] != ' ') {
+                        space++;
+                    }
+                    long length = parseDecimal(new String(records, index,
+                            space - index, "US-ASCII"));
+                    if (length < space - index + 2 ||
+                            length > records.length - index ||
+                                    records[index + (int) length - 1] != '\n') {
+                        throw new IOException("Invalid pax header record.");
+                    }
+                    int end = index + (int) length - 1;
+                    index = end + 1;
+                    int equals = space + 1;
+                    while (equals < end && records[equals] != '=') equals++;
+                    if (equals == end) continue;
+                    String key = new String(records, space + 1,
+                            equals - space - 1, "UTF-8");
+                    String value = new String(records, equals + 1,
+                            end - equals - 1, "UTF-8");
+                    if ("path".equals(key)) {
+                        paxName = value;
+                    } else if ("size".equals(key)) {
+                        paxSize = parseDecimal(value);
+                        if (paxSize < 0) {
+                            throw new IOException("Invalid pax size: " +
+                                    value);
+                        }
+                    } else if ("mtime".equals(key)) {
+                        int dot = value.indexOf('.');
+                        paxTime = parseDecimal((dot != -1) ?
+                                value.substring(0, dot) : value) * 1000l;
+                    }
+                }
+                continue;
+            }
+            if (type == 'g') continue;
+            if (paxSize >= 0) {
+                size = paxSize;
+                remaining = size;
+                padding = (BLOCK - (size % BLOCK)) % BLOCK;
+            }
+            String name = paxName;
+            if (name == null) name = longName;
+            if (name == null) {
+                name = parseString(0, 100);
+                String prefix = (header[257] == 'u' && header[258] == 's' &&
+                        header[259] == 't' && header[260] == 'a' &&
+                                header[261] == 'r') ? parseString(345, 155) :
+                                        "";
+                if (prefix.length() > 0) name = prefix + "/" + name;
+            }
+            long modified = (paxTime >= 0) ? paxTime :
+                    parseNumber(136, 12) * 1000l;
+            int entryType;
+            switch (type) {
+            case '0':
+            case '\0':
+            case '7':
+                entryType = Entry.FILE;
+                break;
+            case '5':
+                entryType = Entry.DIRECTORY;
+                break;
+            default:
+                entryType = Entry.OTHER;
+            }
+            if (entryType == Entry.FILE && name.endsWith("/")) {
+                entryType = Entry.DIRECTORY;
+            }
+            if (entryType != Entry.FILE) {
+                // directories and links carry no content.
+                padding += remaining;
+                remaining = 0;
+            }
+            return new Entry(name, entryType, size, modified);
+        }
+    }
+
+    public int read() throws IOException {
+        byte[] b = new byte[1];
+        return (read(b, 0, 1) == -1) ? -1 : (b[0] & 0xff);
+    }
+
+    public int read(byte[] b, int offset, int length) throws IOException {
+        if (remaining <= 0) return -1;
+        int count = in.read(b, offset, (int) Math.min(length, remaining));
+        if (count == -1) throw new EOFException();
+        remaining -= count;
+        return count;
+    }
+
+    public int available() throws IOException {
+        return (int) Math.min(in.available(), remaining);
+    }
+
+    public void close() throws IOException {
+        in.close();
+    }
+
+    private byte[] readContent(long size) throws IOException {
+        if (size > 1048576) {
+            throw new IOException("Extended header too large: " + size);
+        }
+        byte[] content = new byte[(int) size];
+        int offset = 0;
+        while (offset < content.length) {
+            int count = read(content, offset, content.length - offset);
+            if (count == -1) throw new EOFException();
+            offset += count;
+        }
+        return content;
+    }
+
+    private boolean readBlock(byte[] block) throws IOException {
+        int offset = 0;
+        while (offset < block.length) {
+            int count = in.read(block, offset, block.length - offset);
+            if (count == -1) {
+                if (offset == 0) return false;
+                throw new EOFException();
+            }
+            offset += count;
+        }
+        return true;
+    }
+
+    private void skipFully(long count) throws IOException {
+        while (count > 0) {
+            long skipped = in.skip(count);
+            if (skipped <= 0) {
+                if (in.read() == -1) throw new EOFException();
+                skipped = 1;
+            }
+            count -= skipped;
+        }
+    }
+
+    private void verifyChecksum() throws IOException {
+        long checksum = 0;
+        for (int i = 0; i < BLOCK; i++) {
+            checksum += (i >= 148 && i < 156) ? ' ' : (header[i] & 0xff);
+        }
+        if (checksum != parseNumber(148, 8)) {
+            throw new IOException("Invalid tar header checksum.");
+        }
+    }
+
+    private long parseNumber(int offset, int length) throws IOException {
+        if ((header[offset] & 0x80) != 0) {
+            // GNU base-256 encoding, used for sizes of 8 gigabytes or more.
+            long value = header[offset] & 0x7f;
+            for (int i = 1; i < length; i++) {
+                value = (value << 8) | (header[offset + i] & 0xff);
+            }
+            return value;
+        }
+        long value = 0;
+        for (int i = 0; i < length; i++) {
+            byte b = header[offset + i];
+            if (b == 0 || (b == ' ' && value != 0)) break;
+            if (b == ' ') continue;
+            if (b < '0' || b > '7') {
+                throw new IOException("Invalid tar header field.");
+            }
+            value = (value << 3) | (b - '0');
+        }
+        return value;
+    }
+
+    private String parseString(int offset, int length) throws IOException {
+        int end = offset;
+        while (end < offset + length && header[end] != 0) end++;
+        return new String(header, offset, end - offset, "UTF-8");
+    }
+
+    private static long parseDecimal(String value) throws IOException {
+        try {
+            return Long.parseLong(value);
+        } catch (NumberFormatException ex) {
+            throw new IOException("Invalid pax header value: " + value);
+        }
+    }
+
+    private static String trim(String name) {
+        int end = name.indexOf('\0');
+        return (end != -1) ? name.substring(0, end) : name;
+    }
+
+    private static boolean isZero(byte[] block) {
+        for (int i = 0; i < block.length; i++) {
+            if (block[i] != 0) return false;
+        }
+        return true;
+    }
+
+    /**
+     * An entry in a tar archive.
+     */
+    public static class Entry {
+
+        /**
+         * Entry type indicating a regular file.
+         */
+        public static final int FILE = 0;
+
+        /**
+         * Entry type indicating a directory.
+         */
+        public static final int DIRECTORY = 1;
+
+        /**
+         * Entry type indicating anything else (links, devices, etc.).
+         */
+        public static final int OTHER = 2;
+
+        private final String name;
+
+        private final int type;
+
+        private final long size;
+
+        private final long modified;
+
+        private Entry(String name, int type, long size, long modified) {
+            this.name = name;
+            this.type = type;
+            this.size = size;
+            this.modified = modified;
+        }
+
+        /**
+         * Returns the path of the entry within the archive.
+         *
+         * @return A <code>String</code> containing the entry name.
+         */
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * Returns the type of the entry.
+         *
+         * @return One of {@link #FILE}, {@link #DIRECTORY} or
+         * {@link #OTHER}.
+         */
+        public int getType() {
+            return type;
+        }
+
+        /**
+         * Returns the size of the entry's content.
+         *
+         * @return A <code>long</code> containing the content length.
+         */
+        public long getSize() {
+            return size;
+        }
+
+        /**
+         * Returns the modification time of the entry.
+         *
+         * @return A <code>long</code> containing the modification time,
+         * in milliseconds since the epoch.
+         */
+        public long getModified() {
+            return modified;
+        }
+
+    }
+
+}
@@ -0,0 +1,191 @@
+/* Davenport WebDAV SMB Gateway
+ * Copyright (C) 2004  Eric Glass
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+package smbdav;
+
+import java.io.IOException;
+
+import java.util.concurrent.Executor;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import jcifs.smb.NtStatus;
+import jcifs.smb.SmbException;
+import jcifs.smb.SmbFile;
+import jcifs.smb.SmbFileFilter;
+
+/**
+ * Copies a collection, and (optionally) its members, in parallel.  Each
+ * directory is created and then listed by one task, which schedules a
+ * task for each member; files are copied by tasks of their own.  If a
+ * directory can't be created or listed, its members are skipped.  As with
+ * <code>SmbFile.copyTo</code>, each copied directory is given the
+ * attributes and times of its source.
+ * <p>
+ * Only failures are recorded in the multistatus, as required for the
+ * response to a WebDAV COPY.
+ *
+ * @author Eric Glass
+ */
+public class TreeCopy extends TreeOperation {
+
+    private final SmbFileFilter filter;
+
+    private final AtomicInteger files = new AtomicInteger();
+
+    private final AtomicInteger directories = new AtomicInteger();
+
+    /**
+     * Creates a <code>TreeCopy</code>.
+     *
+     * @param filter The filter selecting the members to be copied, or
+     * <code>null</code> to copy all members.
+     * @param executor The executor on which copies are performed, or
+     * <code>null</code> to copy on the calling thread.
+     * @param serverLimits The per-server concurrency limits.
+     */
+    public TreeCopy(SmbFileFilter filter, Executor executor,
+            ServerLimits serverLimits) {
+        super(executor, serverLimits, new MultiStatus());
+        this.filter = filter;
+    }
+
+    /**
+     * Copies the specified collection to the destination, which must not
+     * exist.
+     *
+     * @param source The collection to be copied.
+     * @param destination The location of the copy.
+     * @param href The (escaped) URL of the destination, ending in a slash.
+     * @param members Whether the members of the collection are copied, or
+     * only the collection itself.
+     * @return The <code>MultiStatus</code> containing any failures.
+     * @throws IOException If the copy was interrupted.
+     */
+    public MultiStatus copy(SmbFile source, SmbFile destination, String href,
+            boolean members) throws IOException {
+        long start = System.currentTimeMillis();
+        schedule(new DirectoryTask(source, destination, href, members));
+        execute();
+        Log.log(Log.DEBUG, "Copied {0} files and {1} directories from " +
+                "\"{2}\" in {3} ms.", new Object[] { new Integer(files.get()),
+                        new Integer(directories.get()), source,
+                                new Long(System.currentTimeMillis() - start) });
+        return getMultiStatus();
+    }
+
+    /**
+     * Copies the times and attributes of a directory to its copy.  Servers
+     * which refuse this leave the copy with its own, as for copyTo.
+     */
+    private static void copyInformation(SmbFile source, SmbFile destination)
+            throws IOException {
+        try {
+            destination.setCreateTime(source.createTime());
+            destination.setLastModified(source.lastModified());
+            destination.setAttributes(source.getAttributes());
+        } catch (SmbException ex) {
+            int status = ex.getNtStatus();
+            if (status != NtStatus.NT_STATUS_ACCESS_DENIED &&
+                    status != NtStatus.NT_STATUS_OBJECT_NAME_COLLISION) {
+                throw ex;
+            }
+            Log.log(Log.DEBUG, "Unable to set information for \"{0}\": {1}",
+                    new Object[] { destination, ex });
+        }
+    }
+
+    private class DirectoryTask extends Task {
+
+        private final SmbFile source;
+
+        private final SmbFile destination;
+
+        private final String href;
+
+        private final boolean members;
+
+        public DirectoryTask(SmbFile source, SmbFile destination,
+                String href, boolean members) {
+            super(href, new SmbFile[] { source, destination });
+            this.source = source;
+            this.destination = destination;
+            this.href = href;
+            this.members = members;
+        }
+
+        protected void perform() {
+            SmbFile[] children;
+            try {
+                destination.mkdir();
+                copyInformation(source, destination);
+                directories.incrementAndGet();
+                if (!members) return;
+                children = (filter != null) ? source.listFiles(filter) :
+                        source.listFiles();
+            } catch (IOException ex) {
+                getMultiStatus().add(href, ex);
+                return;
+            }
+            for (int i = 0; i < children.length; i++) {
+                String name = children[i].getName();
+                try {
+                    SmbFile target = new SmbFile(destination, name);
+                    String location = href + PropertiesDirector.escape(name);
+                    if (children[i].isDirectory()) {
+                        schedule(new DirectoryTask(children[i], target,
+                                location, true));
+                    } else {
+                        schedule(new FileTask(children[i], target,
+                                location));
+                    }
+                } catch (IOException ex) {
+                    getMultiStatus().add(href, ex);
+                }
+            }
+        }
+
+    }
+
+    private class FileTask extends Task {
+
+        private final SmbFile source;
+
+        private final SmbFile destination;
+
+        private final String href;
+
+        public FileTask(SmbFile source, SmbFile destination, String href) {
+            super(href, new SmbFile[] { source, destination });
+            this.source = source;
+            this.destination = destination;
+            this.href = href;
+        }
+
+        protected void perform() {
+            try {
+                source.copyTo(destination);
+                files.incrementAndGet();
+            } catch (IOException ex) {
+                getMultiStatus().add(href, ex);
+            }
+        }
+
+    }
+
+}
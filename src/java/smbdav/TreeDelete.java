@@ -0,0 +1,222 @@
+/* Davenport WebDAV SMB Gateway
+ * Copyright (C) 2004  Eric Glass
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+package smbdav;
+
+import java.io.IOException;
+
+import java.util.concurrent.Executor;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import jcifs.smb.SmbFile;
+
+/**
+ * Deletes a collection and all of its members in parallel.  Each
+ * directory is listed by one task, which schedules a task to delete each
+ * file and to list each subdirectory; once all of a directory's members
+ * have been removed, the (now empty) directory itself is removed.
+ * Directories are thus removed bottom-up, while files throughout the tree
+ * are removed concurrently.
+ * <p>
+ * If a member can't be removed, the failure is recorded in the multistatus
+ * and the directories containing it are left in place (without being
+ * reported, as for a WebDAV DELETE).
+ *
+ * @author Eric Glass
+ */
+public class TreeDelete extends TreeOperation {
+
+    private final AtomicInteger files = new AtomicInteger();
+
+    private final AtomicInteger directories = new AtomicInteger();
+
+    /**
+     * Creates a <code>TreeDelete</code>.
+     *
+     * @param executor The executor on which deletions are performed, or
+     * <code>null</code> to delete on the calling thread.
+     * @param serverLimits The per-server concurrency limits.
+     */
+    public TreeDelete(Executor executor, ServerLimits serverLimits) {
+        super(executor, serverLimits, new MultiStatus());
+    }
+
+    /**
+     * Deletes the specified collection.
+     *
+     * @param collection The collection to be deleted.
+     * @param href The (escaped) URL of the collection, ending in a slash.
+     * @return The <code>MultiStatus</code> containing any failures.
+     * @throws IOException If the deletion was interrupted.
+     */
+    public MultiStatus delete(SmbFile collection, String href)
+            throws IOException {
+        long start = System.currentTimeMillis();
+        schedule(new ListTask(new Directory(collection, href, null)));
+        execute();
+        Log.log(Log.DEBUG, "Deleted {0} files and {1} directories from " +
+                "\"{2}\" in {3} ms.", new Object[] { new Integer(files.get()),
+                        new Integer(directories.get()), collection,
+                                new Long(System.currentTimeMillis() - start) });
+        return getMultiStatus();
+    }
+
+    /**
+     * Tracks the members of a directory still to be removed.
+     */
+    private class Directory {
+
+        private final SmbFile file;
+
+        private final String href;
+
+        private final Directory parent;
+
+        // the listing counts as an outstanding member until it completes.
+        private int pending = 1;
+
+        private boolean failed;
+
+        public Directory(SmbFile file, String href, Directory parent) {
+            this.file = file;
+            this.href = href;
+            this.parent = parent;
+        }
+
+        public synchronized void add() {
+            pending++;
+        }
+
+        /**
+         * Records the outcome for a member; once all members are done,
+         * removes the directory, or reports the failure to its parent.
+         */
+        public synchronized void release(boolean removed) {
+            if (!removed) failed = true;
+            if (--pending > 0) return;
+            if (!failed) {
+                schedule(new RemoveTask(this));
+            } else if (parent != null) {
+                parent.release(false);
+            }
+        }
+
+    }
+
+    private class ListTask extends Task {
+
+        private final Directory directory;
+
+        public ListTask(Directory directory) {
+            super(directory.href, new SmbFile[] { directory.file });
+            this.directory = directory;
+        }
+
+        protected void perform() {
+            SmbFile[] children;
+            try {
+                children = directory.file.listFiles();
+            } catch (IOException ex) {
+                getMultiStatus().add(directory.href, ex);
+                directory.release(false);
+                return;
+            }
+            for (int i = 0; i < children.length; i++) {
+                String name = children[i].getName();
+                try {
+                    String location = directory.href +
+                            PropertiesDirector.escape(name);
+                    if (children[i].isDirectory()) {
+                        Directory child = new Directory(children[i], location,
+                                directory);
+                        directory.add();
+                        schedule(new ListTask(child));
+                    } else {
+                        directory.add();
+                        schedule(new FileTask(children[i], location,
+                                directory));
+                    }
+                } catch (IOException ex) {
+                    getMultiStatus().add(directory.href + name, ex);
+                    directory.add();
+                    directory.release(false);
+                }
+            }
+            directory.release(true);
+        }
+
+    }
+
+    private class FileTask extends Task {
+
+        private final SmbFile file;
+
+        private final String href;
+
+        private final Directory parent;
+
+        public FileTask(SmbFile file, String href, Directory parent) {
+            super(href, new SmbFile[] { file });
+            this.file = file;
+            this.href = href;
+            this.parent = parent;
+        }
+
+        protected void perform() {
+            boolean removed = false;
+            try {
+                file.delete();
+                files.incrementAndGet();
+                removed = true;
+            } catch (IOException ex) {
+                getMultiStatus().add(href, ex);
+            } finally {
+                parent.release(removed);
+            }
+        }
+
+    }
+
+    private class RemoveTask extends Task {
+
+        private final Directory directory;
+
+        public RemoveTask(Directory directory) {
+            super(directory.href, new SmbFile[] { directory.file });
+            this.directory = directory;
+        }
+
+        protected void perform() {
+            boolean removed = false;
+            try {
+                directory.file.delete();
+                directories.incrementAndGet();
+                removed = true;
+            } catch (IOException ex) {
+                getMultiStatus().add(directory.href, ex);
+            } finally {
+                if (directory.parent != null) {
+                    directory.parent.release(removed);
+                }
+            }
+        }
+
+    }
+
+}
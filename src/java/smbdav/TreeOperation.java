@@ -0,0 +1,217 @@
+/* Davenport WebDAV SMB Gateway
+ * Copyright (C) 2004  Eric Glass
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+package smbdav;
+
+import java.io.InterruptedIOException;
+
+import java.util.LinkedList;
+import java.util.TreeSet;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+
+import jcifs.smb.SmbFile;
+
+/**
+ * Performs an operation on a tree of resources as a set of tasks run in
+ * parallel.  Tasks may schedule further tasks (for instance, a task
+ * listing a directory schedules a task for each child); the thread
+ * calling {@link #execute()} dispatches them to the executor until all
+ * have completed.
+ * <p>
+ * Before dispatching a task, the dispatcher acquires a permit from the
+ * {@link ServerLimits} of each server the task operates on, which the
+ * task releases when it completes.  This bounds the work in flight
+ * against each server without holding executor threads while waiting.
+ * If no executor is available, tasks are run on the dispatching thread.
+ * <p>
+ * Tasks are responsible for recording their own failures in the
+ * operation's {@link MultiStatus}.
+ *
+ * @author Eric Glass
+ */
+public abstract class TreeOperation {
+
+    private final Executor executor;
+
+    private final ServerLimits serverLimits;
+
+    private final MultiStatus multiStatus;
+
+    private final LinkedList queue = new LinkedList();
+
+    private int outstanding;
+
+    /**
+     * Creates a <code>TreeOperation</code>.
+     *
+     * @param executor The executor on which tasks are run, or
+     * <code>null</code> to run tasks on the dispatching thread.
+     * @param serverLimits The per-server concurrency limits.
+     * @param multiStatus The collector for per-resource failures.
+     */
+    protected TreeOperation(Executor executor, ServerLimits serverLimits,
+            MultiStatus multiStatus) {
+        this.executor = executor;
+        this.serverLimits = serverLimits;
+        this.multiStatus = multiStatus;
+    }
+
+    /**
+     * Returns the collector for per-resource results.
+     *
+     * @return The operation's <code>MultiStatus</code>.
+     */
+    public MultiStatus getMultiStatus() {
+        return multiStatus;
+    }
+
+    /**
+     * Schedules a task.  This may be called from within a running task.
+     *
+     * @param task The task to be run.
+     */
+    protected synchronized void schedule(Task task) {
+        queue.addLast(task);
+        outstanding++;
+        notifyAll();
+    }
+
+    /**
+     * Dispatches scheduled tasks, and the tasks they schedule, until all
+     * have completed.  If the dispatching thread is interrupted, tasks
+     * not yet dispatched are discarded.
+     *
+     * @throws InterruptedIOException If the thread is interrupted.
+     */
+    protected void execute() throws InterruptedIOException {
+        while (true) {
+            Task task;
+            synchronized (this) {
+                try {
+                    while (queue.isEmpty() && outstanding > 0) wait();
+                } catch (InterruptedException ex) {
+                    discard();
+                    throw new InterruptedIOException();
+                }
+                if (outstanding == 0) return;
+                task = (Task) queue.removeFirst();
+            }
+            try {
+                task.permits = acquire(task.servers);
+            } catch (InterruptedException ex) {
+                synchronized (this) {
+                    outstanding--;
+                    discard();
+                }
+                throw new InterruptedIOException();
+            }
+            if (executor == null) {
+                task.run();
+                continue;
+            }
+            try {
+                executor.execute(task);
+            } catch (RejectedExecutionException ex) {
+                task.run();
+            }
+        }
+    }
+
+    private synchronized void discard() {
+        outstanding -= queue.size();
+        queue.clear();
+    }
+
+    private synchronized void complete() {
+        outstanding--;
+        notifyAll();
+    }
+
+    /**
+     * Acquires a permit for each of the given servers, in a consistent
+     * order so that dispatchers never wait on each other.
+     */
+    private Semaphore[] acquire(String[] servers)
+            throws InterruptedException {
+        Semaphore[] permits = new Semaphore[servers.length];
+        int count = 0;
+        try {
+            for (; count < servers.length; count++) {
+                permits[count] = serverLimits.getSemaphore(servers[count]);
+                permits[count].acquire();
+            }
+        } catch (InterruptedException ex) {
+            for (int i = 0; i < count; i++) permits[i].release();
+            throw ex;
+        }
+        return permits;
+    }
+
+    /**
+     * A unit of work operating on one or more resources.
+     */
+    protected abstract class Task implements Runnable {
+
+        private final String href;
+
+        private final String[] servers;
+
+        private Semaphore[] permits;
+
+        /**
+         * Creates a task operating on the specified resources.
+         *
+         * @param href The URL reported if the task fails unexpectedly.
+         * @param resources The resources on which the task operates.
+         */
+        protected Task(String href, SmbFile[] resources) {
+            this.href = href;
+            TreeSet names = new TreeSet();
+            for (int i = 0; i < resources.length; i++) {
+                String server = resources[i].getServer();
+                if (server != null) names.add(server.toLowerCase());
+            }
+            servers = (String[]) names.toArray(new String[names.size()]);
+        }
+
+        /**
+         * Performs the task.
+         */
+        protected abstract void perform();
+
+        public final void run() {
+            try {
+                perform();
+            } catch (RuntimeException ex) {
+                multiStatus.add(href, ex);
+            } finally {
+                if (permits != null) {
+                    for (int i = 0; i < permits.length; i++) {
+                        permits[i].release();
+                    }
+                }
+                complete();
+            }
+        }
+
+    }
+
+}
@@ -0,0 +1,513 @@
+/* Davenport WebDAV SMB Gateway
+ * Copyright (C) 2004  Eric Glass
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+package smbdav;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+import java.util.Map;
+import java.util.Properties;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import jcifs.smb.SmbFile;
+import jcifs.smb.SmbFileOutputStream;
+
+/**
+ * Spools uploaded content to local disk before writing it to the server,
+ * so that a slow client does not hold a handle (and oplock) on the target
+ * file for the duration of its upload.
+ * <p>
+ * In burst mode, the spooled content is written to a temporary file
+ * alongside the target as soon as it has been received, and the temporary
+ * file then replaces the target.  In write-behind mode, the upload is
+ * acknowledged as soon as the spooled content has been synced to disk,
+ * and the content is written to the server in the background; failed
+ * writes are retried.  Each pending write is recorded in a job file in
+ * the spool directory, written (and synced) after the content.
+ * <p>
+ * Credentials are never written to disk, so pending writes can only be
+ * performed by the process which received them.  Jobs found in the spool
+ * directory at startup are left in place (and reported) for an
+ * administrator to recover; incomplete spool files are removed.
+ * <p>
+ * The total size of the spooled content is held within a fixed capacity;
+ * uploads which do not fit are not spooled.
+ *
+ * @author Eric Glass
+ */
+public class UploadSpool {
+
+    private static final String DATA_SUFFIX = ".data";
+
+    private static final String JOB_SUFFIX = ".job";
+
+    private static final String FAILED_SUFFIX = ".failed";
+
+    private final File directory;
+
+    private final long capacity;
+
+    private final int retries;
+
+    private final long retryInterval;
+
+    private final BufferPool bufferPool;
+
+    private final ScheduledThreadPoolExecutor writer;
+
+    private final Map pending = new ConcurrentHashMap();
+
+    private final AtomicLong sequence = new AtomicLong();
+
+    private final AtomicLong spooled = new AtomicLong();
+
+    private final AtomicLong spooledBytes = new AtomicLong();
+
+    private final AtomicLong rejected = new AtomicLong();
+
+    private final AtomicLong bursts = new AtomicLong();
+
+    private final AtomicLong queued = new AtomicLong();
+
+    private final AtomicLong completed = new AtomicLong();
+
+    private final AtomicLong retried = new AtomicLong();
+
+    private final AtomicLong failed = new AtomicLong();
+
+    private long used;
+
+    /**
+     * Creates an <code>UploadSpool</code> in the specified directory.
+     * Incomplete spool files left in the directory are removed; pending
+     * and failed jobs are counted against the capacity.
+     *
+     * @param directory The directory holding spooled content.
+     * @param capacity The largest number of bytes spooled at once.
+     * @param writers The number of threads writing spooled content to the
+     * server in write-behind mode.
+     * @param retries The number of times a failed write-behind is retried.
+     * @param retryInterval The time, in milliseconds, between retries.
+     * @param bufferPool The pool from which transfer buffers are obtained.
+     * @throws IOException If the spool directory could not be created.
+     */
+    public UploadSpool(File directory, long capacity, int writers,
+            int retries, long retryInterval, BufferPool bufferPool)
+                    throws IOException {
+        this.directory = directory;
+        this.capacity = capacity;
+        this.retries = retries;
+        this.retryInterval = retryInterval;
+        this.bufferPool = bufferPool;
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Unable to create spool directory: " +
+                    directory);
+        }
+        recover();
+        writer = new ScheduledThreadPoolExecutor(Math.max(writers, 1),
+                new DavenportThreadFactory("Davenport-Spool-"));
+    }
+
+    /**
+     * Reserves space for, and creates, a spool file for content of the
+     * given length.
+     *
+     * @param length The length of the content.
+     * @return The spool <code>File</code>, or <code>null</code> if the
+     * content does not fit in the spool.
+     * @throws IOException If the spool file could not be created.
+     */
+    public File reserve(long length) throws IOException {
+        synchronized (this) {
+            if (used + length > capacity) {
+                rejected.incrementAndGet();
+                return null;
+            }
+            used += length;
+        }
+        File data = new File(directory, Long.toString(
+                System.currentTimeMillis(), 36) + "-" +
+                        sequence.incrementAndGet() + DATA_SUFFIX);
+        try {
+            new FileOutputStream(data).close();
+        } catch (IOException ex) {
+            release(data, length);
+            throw ex;
+        }
+        return data;
+    }
+
+    /**
+     * Deletes a spool file and returns its space to the spool.
+     *
+     * @param data The spool file.
+     * @param length The length reserved for the file.
+     */
+    public void release(File data, long length) {
+        if (data.exists() && !data.delete()) {
+            Log.log(Log.WARNING, "Unable to delete spool file \"{0}\".", data);
+        }
+        synchronized (this) {
+            used -= length;
+        }
+    }
+
+    /**
+     * Receives content into a spool file.
+     *
+     * @param input The stream from which the content is read.
+     * @param data The spool file.
+     * @param length The length of the content.
+     * @param sync Whether the content is to be synced to disk.
+     * @throws IOException If an IO error occurs, or the stream does not
+     * supply exactly the given length.
+     */
+    public void receive(InputStream input, File data, long length,
+            boolean sync) throws IOException {
+        FileOutputStream output = new FileOutputStream(data);
+        byte[] buf = bufferPool.borrow(Math.min(65536,
+                bufferPool.getMaximumBufferSize()));
+        long total = 0;
+        try {
+            int count;
+            while ((count = input.read(buf, 0, (int) Math.min(buf.length,
+                    length - total + 1))) > 0) {
+                total += count;
+                if (total > length) break;
+                output.write(buf, 0, count);
+            }
+            if (total != length) {
+                throw new IOException("Expected " + length +
+                        " bytes, received " + total + ".");
+            }
+            output.flush();
+            if (sync) output.getFD().sync();
+        } finally {
+            bufferPool.release(buf);
+            output.close();
+        }
+        spooled.incrementAndGet();
+        spooledBytes.addAndGet(length);
+    }
+
+    /**
+     * Writes spooled content to a temporary file alongside the target,
+     * which then replaces the target.  The spool file is released
+     * whether or not this succeeds.
+     *
+     * @param data The spool file.
+     * @param length The length of the content.
+     * @param target The file to be replaced.
+     * @throws IOException If the content could not be written.
+     */
+    public void burst(File data, long length, SmbFile target)
+            throws IOException {
+        try {
+            replace(data, target);
+            bursts.incrementAndGet();
+        } finally {
+            release(data, length);
+        }
+    }
+
+    /**
+     * Queues spooled content to be written to the target in the
+     * background.  The spool file must have been synced; on return, the
+     * job has been recorded on disk.  A write still queued for the same
+     * target is superseded.
+     *
+     * @param data The spool file.
+     * @param length The length of the content.
+     * @param target The file to be written.
+     * @throws IOException If the job could not be recorded.
+     */
+    public void enqueue(File data, long length, SmbFile target)
+            throws IOException {
+        Properties properties = new Properties();
+        properties.setProperty("target", target.getCanonicalPath());
+        properties.setProperty("length", String.valueOf(length));
+        properties.setProperty("created",
+                String.valueOf(System.currentTimeMillis()));
+        File job = sibling(data, JOB_SUFFIX);
+        File temp = sibling(data, JOB_SUFFIX + ".tmp");
+        FileOutputStream output = new FileOutputStream(temp);
+        try {
+            properties.store(output, "Davenport write-behind job");
+            output.getFD().sync();
+        } finally {
+            output.close();
+        }
+        if (!temp.renameTo(job)) {
+            temp.delete();
+            throw new IOException("Unable to record spool job: " + job);
+        }
+        String key = target.getCanonicalPath();
+        Job task;
+        synchronized (pending) {
+            Job previous = (Job) pending.get(key);
+            task = new Job(data, job, length, target, key, previous);
+            pending.put(key, task);
+            if (previous != null) previous.supersede();
+        }
+        queued.incrementAndGet();
+        writer.execute(task);
+    }
+
+    /**
+     * Stops writing spooled content.  Pending jobs remain in the spool
+     * directory.
+     */
+    public void destroy() {
+        writer.shutdownNow();
+        if (!pending.isEmpty()) {
+            Log.log(Log.WARNING, "{0} write-behind uploads not completed; " +
+                    "spooled content remains in \"{1}\".", new Object[] {
+                            new Integer(pending.size()), directory });
+        }
+        pending.clear();
+    }
+
+    /**
+     * Returns the number of bytes currently held in the spool.
+     *
+     * @return A <code>long</code> containing the bytes in use.
+     */
+    public synchronized long getUsed() {
+        return used;
+    }
+
+    /**
+     * Returns the number of write-behind uploads not yet written to the
+     * server.
+     *
+     * @return An <code>int</code> containing the number of pending jobs.
+     */
+    public int getPending() {
+        return pending.size();
+    }
+
+    public String toString() {
+        return "UploadSpool[directory=" + directory + ",capacity=" +
+                capacity + ",used=" + getUsed() + ",spooled=" + spooled +
+                ",spooledBytes=" + spooledBytes + ",rejected=" + rejected +
+                ",bursts=" + bursts + ",queued=" + queued + ",pending=" +
+                getPending() + ",completed=" + completed + ",retried=" +
+                retried + ",failed=" + failed + "]";
+    }
+
+    /**
+     * Writes the spooled content to a temporary file, which then replaces
+     * the target.  The spool file itself is left in place, so a failed
+     * write may be retried.  If the temporary file can't replace the
+     * target, it is removed only once the target is known to be intact.
+     */
+    private void replace(File data, SmbFile target) throws IOException {
+        SmbFile temp = new SmbFile(target, "." + target.getName() + "." +
+                Long.toString(System.currentTimeMillis(), 36) + ".spool");
+        boolean exists = target.exists();
+        InputStream input = new FileInputStream(data);
+        byte[] buf = bufferPool.borrow(Math.min(65536,
+                bufferPool.getMaximumBufferSize()));
+        try {
+            OutputStream output = new SmbFileOutputStream(temp);
+            try {
+                int count;
+                while ((count = input.read(buf)) != -1) {
+                    output.write(buf, 0, count);
+                }
+            } finally {
+                output.close();
+            }
+        } catch (IOException ex) {
+            remove(temp);
+            throw ex;
+        } finally {
+            bufferPool.release(buf);
+            input.close();
+        }
+        try {
+            SmbDAVUtilities.replace(temp, target);
+        } catch (IOException ex) {
+            if (!exists || target.exists()) {
+                remove(temp);
+            } else {
+                Log.log(Log.WARNING, "Upload to \"{0}\" kept in \"{1}\".",
+                        new Object[] { target, temp });
+            }
+            throw ex;
+        }
+    }
+
+    private void remove(SmbFile temp) {
+        try {
+            if (temp.exists()) temp.delete();
+        } catch (IOException ex) {
+            Log.log(Log.INFORMATION, "Unable to remove \"{0}\": {1}",
+                    new Object[] { temp, ex });
+        }
+    }
+
+    private void recover() {
+        File[] files = directory.listFiles();
+        if (files == null) return;
+        int jobs = 0;
+        for (int i = 0; i < files.length; i++) {
+            String name = files[i].getName();
+            if (name.endsWith(DATA_SUFFIX)) {
+                if (sibling(files[i], JOB_SUFFIX).exists() ||
+                        sibling(files[i], FAILED_SUFFIX).exists()) {
+                    used += files[i].length();
+                } else {
+                    // never acknowledged to the client.
+                    files[i].delete();
+                }
+            } else if (name.endsWith(JOB_SUFFIX)) {
+                jobs++;
+            } else if (name.endsWith(JOB_SUFFIX + ".tmp")) {
+                files[i].delete();
+            }
+        }
+        if (jobs > 0) {
+            Log.log(Log.WARNING, "Found {0} write-behind uploads from a " +
+                    "previous run in \"{1}\"; these must be recovered " +
+                            "manually.", new Object[] { new Integer(jobs),
+                                    directory });
+        }
+    }
+
+    private static File sibling(File data, String suffix) {
+        String name = data.getName();
+        return new File(data.getParentFile(), name.substring(0,
+                name.length() - DATA_SUFFIX.length()) + suffix);
+    }
+
+    private class Job implements Runnable {
+
+        private final File data;
+
+        private final File job;
+
+        private final long length;
+
+        private final SmbFile target;
+
+        private final String key;
+
+        private Job previous;
+
+        private int attempts;
+
+        private boolean running;
+
+        private boolean superseded;
+
+        public Job(File data, File job, long length, SmbFile target,
+                String key, Job previous) {
+            this.data = data;
+            this.job = job;
+            this.length = length;
+            this.target = target;
+            this.key = key;
+            this.previous = previous;
+        }
+
+        public void run() {
+            synchronized (this) {
+                if (superseded) {
+                    discard();
+                    return;
+                }
+                // an earlier write to the same target must finish first.
+                if (previous != null && previous.isRunning()) {
+                    writer.schedule(this, 1000l, TimeUnit.MILLISECONDS);
+                    return;
+                }
+                previous = null;
+                running = true;
+            }
+            try {
+                replace(data, target);
+                completed.incrementAndGet();
+                Log.log(Log.DEBUG, "Wrote spooled upload to \"{0}\".",
+                        target);
+                pending.remove(key, this);
+                job.delete();
+                release(data, length);
+            } catch (Throwable throwable) {
+                if (isSuperseded()) {
+                    discard();
+                } else if (++attempts <= retries && !writer.isShutdown()) {
+                    retried.incrementAndGet();
+                    Log.log(Log.INFORMATION, "Write-behind to \"{0}\" " +
+                            "failed (attempt {1}); retrying: {2}",
+                                    new Object[] { target,
+                                            new Integer(attempts), throwable });
+                    writer.schedule(this, retryInterval,
+                            TimeUnit.MILLISECONDS);
+                } else {
+                    failed.incrementAndGet();
+                    pending.remove(key, this);
+                    job.renameTo(sibling(data, FAILED_SUFFIX));
+                    Log.log(Log.WARNING, "Write-behind to \"{0}\" failed; " +
+                            "spooled content kept in \"{1}\": {2}",
+                                    new Object[] { target, data, throwable });
+                }
+            } finally {
+                synchronized (this) {
+                    running = false;
+                }
+            }
+        }
+
+        /**
+         * Marks this job as replaced by a later upload to the same target.
+         * A job which has not yet started is discarded when it runs; one in
+         * progress completes, but is not retried.
+         */
+        public synchronized void supersede() {
+            superseded = true;
+        }
+
+        private synchronized boolean isSuperseded() {
+            return superseded;
+        }
+
+        private synchronized boolean isRunning() {
+            return running;
+        }
+
+        private void discard() {
+            Log.log(Log.DEBUG, "Discarding superseded upload to \"{0}\".",
+                    target);
+            job.delete();
+            release(data, length);
+        }
+
+    }
+
+}